@@ -1,19 +1,34 @@
 // Version 3 of the Chat Client
 package client;
 
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatClient {
     private static final String SERVER_ADDRESS = "localhost"; // Server address
     private static final int SERVER_PORT = 12345; // Server port
+    private static final int FILE_PORT = 12346; // Server port for file transfers
+    private static final boolean TLS = Boolean.getBoolean("chat.tls"); // Connect with TLS; the server certificate must be trusted via javax.net.ssl.trustStore
+    private static final int FRAME_INTERVAL_MS = 16; // Minimum delay between two UI updates for inbound messages
+    private static final long TYPING_TIMEOUT_MS = 6000; // Typing indicators without a refresh expire after this long
+    private static final int PRIVATE_HISTORY_LINES = 50; // Stored private messages fetched when a chat opens without a local cache
+    private static final EmojiMatcher EMOJIS = EmojiMatcher.loadDefault(); // Shortcode substitution for displayed lines
+    private static final String CAPABILITIES = "file typing receipts deflate"; // Protocol extensions this client understands
 
     private Socket socket; // Socket for connecting to the server
     private PrintWriter out; // Output stream for sending messages to the server
@@ -21,16 +36,45 @@ public class ChatClient {
 
     private JFrame loginFrame; // Login frame
     private JFrame chatFrame; // Main chat frame
-    private JTextArea messageArea; // Area to display chat messages
+    private MessageView messageView; // View displaying chat messages
     private JTextField messageField; // Field for typing messages
+    private JLabel typingLabel; // Shows who is typing in the room
+    private JLabel receiptLabel; // Shows how many have seen our latest room message
     private JList<String> userList; // List of online users
     private DefaultListModel<String> userModel; // Data model for the user list
     private String username; // Username of the client
+    private String password; // Kept to log in again when the connection is lost
+    private volatile boolean active; // True from pressing login until logout or a failed login
+    private volatile long reconnectDelay = -1; // Delay suggested by a draining server, -1 if none was sent
+    private LocalMessageStore localStore; // On-disk cache of this user's conversations
+    private FileTransferClient fileTransfers; // Uploads and downloads over the file transfer port
 
     private Map<String, PrivateChatWindow> privateChats; // Map for managing private chat windows
+    private Map<String, Long> typingUsers = new LinkedHashMap<>(); // Users typing in the room, with when they were last seen
+    private Timer typingExpiry; // Clears typing indicators whose stop signal was lost
+    private ReceiptReporter receiptReporter; // Acknowledges delivered and read messages
+    private long lastRoomSent; // Seq of our latest room message
+    private Map<String, String[]> sharedFiles = new HashMap<>(); // Files shared in the room, by the line announcing them without its timestamp
+    private Map<String, Integer> backlogOverlap = new HashMap<>(); // Cached lines the server's history replay may repeat
+    private boolean backlogMatched; // True once a replayed line matched the cache
+
+    private final ConcurrentLinkedQueue<String> inbound = new ConcurrentLinkedQueue<>(); // Messages waiting to be applied on the EDT
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(); // True while a drain of the inbound queue is pending
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("HH:mm:ss"); // Only used on the EDT
+    private Timer drainTimer; // Fires once per frame interval to apply queued messages
 
     public ChatClient() {
         privateChats = new HashMap<>(); // Initialize the map for private chats
+        drainTimer = new Timer(FRAME_INTERVAL_MS, e -> drainInbound()); // Coalesce bursts into one update per frame
+        drainTimer.setRepeats(false);
+        fileTransfers = new FileTransferClient(SERVER_ADDRESS, FILE_PORT, (peer, text) -> SwingUtilities.invokeLater(() -> {
+            if (peer.equals("*")) {
+                addMessage(text); // Transfers with the room are reported in the main chat
+            } else {
+                openPrivateChat(peer); // Show transfer progress in the conversation with the peer
+                privateChats.get(peer).addMessage(text);
+            }
+        }));
         showLoginScreen(); // Display the login screen when the client starts
     }
 
@@ -74,33 +118,139 @@ public class ChatClient {
         });
     }
 
-    // Handle authentication by sending request to the server
+    // Authenticate with the server in the background; the cached conversation is only opened once the login succeeded,
+    // so a typed username never shows someone else's messages
     private void handleAuthentication(String loginType, String username, String password) {
+        loginFrame.setEnabled(false); // One attempt at a time, until the server answers
+        loginFrame.setTitle("Login/Sign Up (connecting...)");
+        this.password = password;
+        active = true;
+        new Thread(() -> {
+            if (!connect(loginType, username, password, false)) {
+                reconnect(loginType); // Server turned us away for now
+            }
+        }, "connect").start();
+    }
+
+    // Connect and send the login request to the server; returns false if a reconnect should be retried
+    private boolean connect(String loginType, String username, String password, boolean reconnecting) {
         try {
-            // Connect to the server
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+            // Connect to the server; the default TLS factory keeps sessions, so reconnecting resumes the previous one
+            if (TLS) {
+                SSLSocket sslSocket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(SERVER_ADDRESS, SERVER_PORT);
+                sslSocket.startHandshake(); // Fail here rather than on the first write
+                socket = sslSocket;
+            } else {
+                socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+            }
+            socket.setTcpNoDelay(true); // Each line is flushed on its own; Nagle would hold the login behind the handshake's last ACK
             out = new PrintWriter(socket.getOutputStream(), true); // Initialize output stream
             in = new BufferedReader(new InputStreamReader(socket.getInputStream())); // Initialize input stream
 
-            // Send login type, username, and password to server
+            // Announce supported extensions, then send login type, username, and password to server
+            out.println("/caps " + CAPABILITIES);
             out.println(loginType);
             out.println(username);
             out.println(password);
 
             String response = in.readLine(); // Read server response
             if ("SUCCESS".equals(response)) { // If authentication is successful
-                loginFrame.dispose(); // Close the login frame
-                setUpChatUI(); // Set up the main chat UI
+                SwingUtilities.invokeLater(() -> { // Runs before the receiver's first drain, which is queued behind it
+                    if (!chatOpen()) { // First login, possibly after the server said BUSY
+                        openChat(username);
+                    }
+                    loginFrame.dispose(); // Close the login frame
+                    chatFrame.setTitle("Chat - " + username);
+                    messageField.setEnabled(true); // Messages can be sent from now on
+                    receiptReporter.start();
+                    startBacklogDedupe(); // Runs before any message from the server is applied
+                });
                 new MessageReceiver().start(); // Start receiving messages from the server
+            } else if (response != null && response.startsWith("BUSY ")) { // Server is overloaded: BUSY retryAfterMs
+                closeConnection();
+                try {
+                    reconnectDelay = Long.parseLong(response.substring(5).trim());
+                } catch (NumberFormatException e) {
+                    reconnectDelay = -1;
+                }
+                return false;
+            } else if (response == null && reconnecting) {
+                closeConnection(); // Server not ready yet, try again
+                return false;
             } else {
-                // Show error message if authentication fails
-                JOptionPane.showMessageDialog(loginFrame, "Authentication failed!", "Error", JOptionPane.ERROR_MESSAGE);
+                closeConnection();
+                SwingUtilities.invokeLater(() -> authenticationFailed("Authentication failed!"));
             }
         } catch (IOException e) {
+            closeConnection();
+            if (reconnecting) {
+                return false;
+            }
             e.printStackTrace(); // Print error stack trace
+            SwingUtilities.invokeLater(() -> authenticationFailed("Could not connect to the server."));
+        }
+        return true;
+    }
+
+    // Log in again after the connection was lost or refused, at the time the server suggested or with jittered backoff
+    private void reconnect(String loginType) {
+        long delay = 1000 + (long) (Math.random() * 4000);
+        SwingUtilities.invokeLater(() -> {
+            if (chatOpen()) {
+                messageField.setEnabled(false); // Nothing can be sent until we are back
+                chatFrame.setTitle("Chat - " + username + " (reconnecting...)");
+            } else {
+                loginFrame.setTitle("Login/Sign Up (server busy, retrying...)");
+            }
+        });
+        while (active) {
+            if (reconnectDelay >= 0) { // The server said when to come back
+                delay = reconnectDelay;
+                reconnectDelay = -1;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!active || connect(loginType, username, password, true)) {
+                return;
+            }
+            delay = Math.min(delay * 2, 30000) + (long) (Math.random() * 1000); // Back off, with jitter so clients do not retry in step
         }
     }
 
+    // Open this user's local cache and the chat window showing its most recent page
+    private void openChat(String username) {
+        try {
+            localStore = new LocalMessageStore(username);
+        } catch (IOException e) {
+            e.printStackTrace(); // Chat still works, it just starts empty and cannot be searched
+        }
+        setUpChatUI();
+    }
+
+    // Whether the chat window of a successful login is showing
+    private boolean chatOpen() {
+        return chatFrame != null && chatFrame.isDisplayable();
+    }
+
+    // Go back to the login screen after a failed login; the chat window only exists if a reconnect was refused
+    private void authenticationFailed(String reason) {
+        active = false;
+        if (chatOpen()) {
+            typingExpiry.stop(); // Its timer would keep the disposed frame alive
+            receiptReporter.stop();
+            chatFrame.dispose();
+            closeLocalStore();
+        }
+        loginFrame.setTitle("Login/Sign Up");
+        loginFrame.setEnabled(true);
+        loginFrame.setVisible(true);
+        // Show error message if authentication fails
+        JOptionPane.showMessageDialog(loginFrame, reason, "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
     // Set up the main chat UI
     private void setUpChatUI() {
         chatFrame = new JFrame("Chat - " + username); // Create the main chat frame with username
@@ -108,20 +258,51 @@ public class ChatClient {
         chatFrame.setSize(600, 400); // Set frame size
 
         // Create message area for chat
-        messageArea = new JTextArea(10, 30);
-        messageArea.setEditable(false); // Make message area read-only
-        JScrollPane scrollPane = new JScrollPane(messageArea); // Add scroll pane for message area
-        chatFrame.add(scrollPane, BorderLayout.CENTER); // Add message area to the center
+        messageView = new MessageView(openHistory(LocalMessageStore.PUBLIC)); // Only the newest lines are kept in memory
+        messageView.getList().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                String line = messageView.getList().getSelectedValue();
+                String text = line != null && line.startsWith("[") ? line.substring(line.indexOf("] ") + 2) : line; // Drop the timestamp
+                if (e.getClickCount() == 2 && text != null && sharedFiles.containsKey(text)) { // Save a shared file, also from a cached line
+                    String[] file = sharedFiles.get(text);
+                    saveFile(chatFrame, file[3], file[2], file[5], file[6]);
+                }
+            }
+        });
+        chatFrame.add(messageView, BorderLayout.CENTER); // Add message view to the center
 
         // Create message field for typing messages
         messageField = new JTextField(30);
+        TypingNotifier roomTyping = new TypingNotifier(line -> out.println(line), "*");
+        messageField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent e) {
+                if (e.getKeyChar() != '\n') {
+                    roomTyping.keyTyped(); // Throttled, at most one signal every few seconds
+                }
+            }
+        });
         messageField.addActionListener(e -> {
+            roomTyping.stop(); // The message is out, the indicator can go
             String message = messageField.getText(); // Get message from input field
             addMessage("Me: " + message); // Display the message locally
             out.println(message); // Send the message to the server
             messageField.setText(""); // Clear the message field
         });
-        chatFrame.add(messageField, BorderLayout.SOUTH); // Add message field to the bottom
+        messageField.setEnabled(false); // Enabled once the server accepted the login
+        typingLabel = new JLabel(" ");
+        receiptLabel = new JLabel(" ");
+        JPanel statusPanel = new JPanel(new BorderLayout());
+        statusPanel.add(typingLabel, BorderLayout.CENTER);
+        statusPanel.add(receiptLabel, BorderLayout.EAST);
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(statusPanel, BorderLayout.NORTH);
+        bottomPanel.add(messageField, BorderLayout.CENTER);
+        chatFrame.add(bottomPanel, BorderLayout.SOUTH); // Add message field to the bottom
+        typingExpiry = new Timer(1000, e -> expireTyping());
+        typingExpiry.start();
+        receiptReporter = new ReceiptReporter(line -> out.println(line), this::isConversationVisible);
 
         // User list for online users
         userModel = new DefaultListModel<>(); // Create a model for the user list
@@ -141,22 +322,74 @@ public class ChatClient {
         userScrollPane.setPreferredSize(new Dimension(150, 0)); // Set preferred size for user list
         chatFrame.add(userScrollPane, BorderLayout.EAST); // Add user list to the right
 
-        // Logout button
+        // Top panel with the search field and logout button
+        JPanel topPanel = new JPanel(new BorderLayout());
+        JTextField searchField = new JTextField();
+        searchField.setToolTipText("Search messages stored on this computer");
+        searchField.addActionListener(e -> searchMessages(searchField.getText())); // Search when Enter is pressed
+        topPanel.add(new JLabel(" Search: "), BorderLayout.WEST);
+        topPanel.add(searchField, BorderLayout.CENTER);
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 0, 0));
+        JButton shareButton = new JButton("Share File");
+        shareButton.addActionListener(e -> shareFile()); // Offer a file to the whole room
+        buttons.add(shareButton);
         JButton logoutButton = new JButton("Logout");
         logoutButton.addActionListener(e -> logout()); // Add logout button listener
-        chatFrame.add(logoutButton, BorderLayout.NORTH); // Add logout button to the top
+        buttons.add(logoutButton);
+        topPanel.add(buttons, BorderLayout.EAST);
+        chatFrame.add(topPanel, BorderLayout.NORTH); // Add the panel to the top
 
         chatFrame.setVisible(true); // Display the chat frame
     }
 
     // Handle logout functionality
     private void logout() {
-        out.println("/logout"); // Send logout command to the server
+        active = false; // No reconnect once the connection closes
+        if (out != null) {
+            out.println("/logout"); // Send logout command to the server
+        }
         closeConnection(); // Close the connection to the server
+        typingExpiry.stop();
+        receiptReporter.stop();
         chatFrame.dispose(); // Close the chat frame
+        closeLocalStore(); // Save the search index
         showLoginScreen(); // Show the login screen again
     }
 
+    // Close the local message cache
+    private void closeLocalStore() {
+        if (localStore != null) {
+            try {
+                localStore.close();
+            } catch (IOException e) {
+                e.printStackTrace(); // Print error stack trace
+            }
+            localStore = null;
+        }
+    }
+
+    // Search the local cache and show the matching lines
+    private void searchMessages(String query) {
+        if (localStore == null || query.trim().isEmpty()) {
+            return;
+        }
+        localStore.search(query, 200).thenAccept(hits -> SwingUtilities.invokeLater(() -> {
+            DefaultListModel<String> results = new DefaultListModel<>();
+            for (LocalMessageStore.Hit hit : hits) {
+                String where = hit.conversation.equals(LocalMessageStore.PUBLIC) ? "Public" : hit.conversation.substring(8);
+                results.addElement(where + "  " + hit.line);
+            }
+            if (results.isEmpty()) {
+                results.addElement("No messages found.");
+            }
+            JDialog dialog = new JDialog(chatFrame, "Search: " + query, false);
+            dialog.add(new JScrollPane(new JList<>(results)));
+            dialog.setSize(500, 300);
+            dialog.setLocationRelativeTo(chatFrame);
+            dialog.setVisible(true);
+        }));
+    }
+
     // Close the connection to the server
     private void closeConnection() {
         try {
@@ -194,22 +427,30 @@ public class ChatClient {
         });
     }
 
-    // Handle incoming private messages
-    private void handlePrivateMessage(String message) {
+    // Handle incoming private messages, collecting the formatted line into the batch for the sender's window
+    private void handlePrivateMessage(String message, String timestamp, Map<String, List<String>> privateBatches) {
         int senderEnd = message.indexOf(": "); // Find the end of the sender's name
+        if (senderEnd < 13) {
+            return; // Ignore malformed private messages
+        }
         String sender = message.substring(13, senderEnd); // Extract the sender's name
         String content = message.substring(senderEnd + 2); // Extract the message content
 
-        openPrivateChat(sender); // Open a private chat window with the sender
-        PrivateChatWindow chatWindow = privateChats.get(sender); // Get the chat window for the sender
-        chatWindow.addMessage("From " + sender + ": " + content); // Display the received message in the chat window
+        List<String> batch = privateBatches.computeIfAbsent(sender, k -> new ArrayList<>());
+        batch.add(formatLine(timestamp, "From " + sender + ": " + content)); // Queue the line for the sender's chat window
     }
 
     // Class representing a private chat window
     private class PrivateChatWindow extends JFrame {
-        private JTextArea chatArea; // Area to display chat messages
+        private MessageView chatView; // View displaying chat messages
         private JTextField inputField; // Field for typing messages
         private String recipient; // Recipient of the private chat
+        private long peerTypingSince; // When the peer last signalled typing, 0 if not typing
+        private long lastSent; // Seq of our latest message in this conversation
+        private JLabel receiptLabel = new JLabel(" "); // Delivery state of our latest message
+        private List<String> held; // Lines shown once the server's history arrives, null when not waiting for it
+        private List<String> fetched; // History lines received so far
+        private long firstLive = Long.MAX_VALUE; // Lowest seq that arrived live, history from there on is already shown
 
         public PrivateChatWindow(String recipient) {
             this.recipient = recipient; // Set the recipient
@@ -217,18 +458,39 @@ public class ChatClient {
             setSize(300, 200); // Set the size of the window
             setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE); // Set the close operation
 
-            chatArea = new JTextArea(); // Create the chat area
-            chatArea.setEditable(false); // Make the chat area read-only
-            add(new JScrollPane(chatArea), BorderLayout.CENTER); // Add chat area with scroll pane
+            chatView = new MessageView(openHistory("private:" + recipient)); // Create the chat view with cached messages
+            add(chatView, BorderLayout.CENTER); // Add chat view to the center
+            if (chatView.latestLines(1).isEmpty() && out != null) { // Nothing cached on this machine, ask the server
+                held = new ArrayList<>();
+                fetched = new ArrayList<>();
+                out.println("/phistory " + recipient + " " + PRIVATE_HISTORY_LINES);
+            }
 
             inputField = new JTextField(); // Create the input field
+            TypingNotifier typing = new TypingNotifier(line -> out.println(line), recipient);
+            inputField.addKeyListener(new KeyAdapter() {
+                @Override
+                public void keyTyped(KeyEvent e) {
+                    if (e.getKeyChar() != '\n') {
+                        typing.keyTyped(); // Throttled, at most one signal every few seconds
+                    }
+                }
+            });
             inputField.addActionListener(e -> {
+                typing.stop(); // The message is out, the indicator can go
                 String message = inputField.getText(); // Get the message from the input field
                 addMessage("Me: " + message); // Display the message locally
                 out.println("/msg " + recipient + " " + message); // Send the message to the server
                 inputField.setText(""); // Clear the input field
             });
-            add(inputField, BorderLayout.SOUTH); // Add the input field to the bottom
+            JPanel bottomPanel = new JPanel(new BorderLayout());
+            bottomPanel.add(receiptLabel, BorderLayout.NORTH);
+            bottomPanel.add(inputField, BorderLayout.CENTER);
+            add(bottomPanel, BorderLayout.SOUTH); // Add the input field to the bottom
+
+            JButton sendFileButton = new JButton("Send File");
+            sendFileButton.addActionListener(e -> sendFile()); // Offer a file to the recipient
+            add(sendFileButton, BorderLayout.NORTH);
 
             // Remove the chat window from the map when it is closed
             addWindowListener(new WindowAdapter() {
@@ -243,8 +505,81 @@ public class ChatClient {
 
         // Add a message to the chat area with a timestamp
         public void addMessage(String message) {
-            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date()); // Create a timestamp
-            chatArea.append("[" + timestamp + "] " + message + "\n"); // Append the message to the chat area
+            String timestamp = timestampFormat.format(new Date()); // Create a timestamp
+            appendLines(Collections.singletonList(formatLine(timestamp, message))); // Append the message to the chat view
+        }
+
+        // The server assigned a seq to our latest message
+        public void sentSequence(long seq) {
+            noteLive(seq);
+            lastSent = seq;
+            receiptLabel.setText("Sent");
+        }
+
+        // The peer acknowledged messages up to the given seqs
+        public void receipt(long delivered, long read) {
+            if (lastSent == 0) {
+                return; // Nothing sent in this window yet
+            }
+            receiptLabel.setText(read >= lastSent ? "Seen" : delivered >= lastSent ? "Delivered" : "Sent");
+        }
+
+        // Show in the title whether the peer is typing
+        public void setPeerTyping(boolean typing) {
+            peerTypingSince = typing ? System.currentTimeMillis() : 0;
+            setTitle("Private Chat with " + recipient + (typing ? " (typing...)" : ""));
+        }
+
+        // Clear the typing indicator if the peer's stop signal was lost
+        public void expireTyping(long now) {
+            if (peerTypingSince != 0 && now - peerTypingSince > TYPING_TIMEOUT_MS) {
+                setPeerTyping(false);
+            }
+        }
+
+        // Offer a file to the recipient; the upload starts once the server accepts it
+        private void sendFile() {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                File file = chooser.getSelectedFile();
+                String ref = fileTransfers.offer(file, recipient);
+                out.println("/file offer " + ref + " " + recipient + " " + file.length() + " " + file.getName());
+                addMessage("Sending file " + file.getName() + "...");
+            }
+        }
+
+        // Append already formatted lines in one model update
+        public void appendLines(List<String> lines) {
+            if (held != null) {
+                held.addAll(lines); // Shown after the history so the conversation stays in order
+            } else {
+                chatView.appendLines(lines);
+            }
+        }
+
+        // A message of this conversation arrived live with the given seq
+        public void noteLive(long seq) {
+            firstLive = Math.min(firstLive, seq);
+        }
+
+        // A stored message sent by the server in answer to the history request
+        public void historyLine(long seq, long time, String sender, String text) {
+            if (fetched != null && seq < firstLive) { // Anything from firstLive on was shown as it arrived
+                fetched.add(formatLine(timestampFormat.format(new Date(time)), (sender.equals(username) ? "Me" : "From " + sender) + ": " + text));
+            }
+        }
+
+        // The history is complete: show it, followed by what arrived meanwhile
+        public void historyEnd() {
+            if (fetched == null) {
+                return;
+            }
+            fetched.addAll(held);
+            held = null;
+            if (!fetched.isEmpty()) {
+                chatView.appendLines(fetched);
+            }
+            fetched = null;
         }
 
         // Bring the window to the front
@@ -254,30 +589,334 @@ public class ChatClient {
         }
     }
 
-    // Class for receiving messages from the server
+    // Class for receiving messages from the server; it only queues them, the EDT applies them
     private class MessageReceiver extends Thread {
+        private final CompressedFrames frames = new CompressedFrames(); // Decoder for compressed frames
+
         public void run() {
             String message;
+            BufferedReader reader = in; // This connection's stream, a reconnect replaces the field
             try {
-                while ((message = in.readLine()) != null) { // Continuously read messages from the server
-                    if (message.startsWith("/users ")) { // If the message contains the user list
-                        updateUserList(message.substring(7)); // Update the user list
-                    } else if (message.startsWith("Private from ")) { // If the message is a private message
-                        handlePrivateMessage(message); // Handle the private message
+                List<String> unpacked = new ArrayList<>();
+                while ((message = reader.readLine()) != null) { // Continuously read messages from the server
+                    if (message.startsWith("/reconnect ")) { // Server is draining: /reconnect delayMs
+                        try {
+                            reconnectDelay = Long.parseLong(message.substring(11).trim());
+                        } catch (NumberFormatException e) {
+                            reconnectDelay = -1;
+                        }
+                    } else if (message.startsWith("/kicked ")) { // An administrator closed the session: /kicked reason
+                        active = false; // Do not reconnect once the server closes the connection
+                        String reason = message.substring(8);
+                        SwingUtilities.invokeLater(() -> {
+                            messageField.setEnabled(false);
+                            chatFrame.setTitle("Chat - " + username + " (disconnected)");
+                            JOptionPane.showMessageDialog(chatFrame, reason, "Disconnected", JOptionPane.WARNING_MESSAGE);
+                        });
+                    } else if (message.startsWith(CompressedFrames.PREFIX)) { // One or more lines compressed by the server
+                        frames.decode(message, unpacked);
+                        inbound.addAll(unpacked);
+                        unpacked.clear();
                     } else {
-                        addMessage(message); // Add the message to the main chat
+                        inbound.add(message); // Hand the message over to the EDT
                     }
+                    scheduleDrain(); // Make sure a UI update is pending
                 }
             } catch (IOException e) {
-                e.printStackTrace(); // Print error stack trace
+                if (active) {
+                    e.printStackTrace(); // Print error stack trace
+                }
+            }
+            if (active) { // Lost the connection without logging out
+                closeConnection();
+                reconnect("LOGIN");
+            }
+        }
+    }
+
+    // Schedule one drain of the inbound queue on the EDT unless one is already pending
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(drainTimer::start); // Messages arriving within the next frame join the same batch
+        }
+    }
+
+    // Apply every queued message on the EDT with one update per view
+    private void drainInbound() {
+        drainScheduled.set(false); // Messages queued from now on schedule a new drain
+        String timestamp = timestampFormat.format(new Date()); // One timestamp for the whole batch
+        List<String> publicBatch = new ArrayList<>(); // Lines for the main chat view
+        Map<String, List<String>> privateBatches = new LinkedHashMap<>(); // Lines per private chat window
+        String latestUsers = null; // Only the most recent user list matters
+        Map<String, Long> privateSeqs = new HashMap<>(); // Lowest seq received per private chat in this batch
+
+        String message;
+        while ((message = inbound.poll()) != null) {
+            if (message.startsWith("/seq ")) { // Sequenced message: /seq n message
+                int end = message.indexOf(' ', 5);
+                if (end < 0) {
+                    continue;
+                }
+                long seq = Long.parseLong(message.substring(5, end));
+                message = message.substring(end + 1);
+                if (message.startsWith("Private to ")) { // Echo of our own private message
+                    String recipient = message.substring(11, Math.max(11, message.indexOf(": ")));
+                    if (privateChats.containsKey(recipient)) {
+                        privateChats.get(recipient).sentSequence(seq);
+                    }
+                } else {
+                    String conversation = privateSender(message);
+                    receiptReporter.delivered(conversation, seq);
+                    if (!conversation.equals("*")) {
+                        privateSeqs.putIfAbsent(conversation, seq);
+                    }
+                }
+            }
+            if (message.startsWith("/users ")) { // If the message contains the user list
+                latestUsers = message.substring(7);
+            } else if (message.startsWith("Private from ")) { // If the message is a private message
+                handlePrivateMessage(message, timestamp, privateBatches);
+            } else if (message.startsWith("/phistory ")) { // Stored private messages: /phistory peer seq time sender text
+                handlePrivateHistory(message);
+            } else if (message.startsWith("/file ")) { // File transfer notification
+                handleFileCommand(message, timestamp, publicBatch);
+            } else if (message.startsWith("/sent * ")) { // Seq given to our room message
+                lastRoomSent = Long.parseLong(message.substring(8));
+                receiptLabel.setText("Sent ");
+            } else if (message.startsWith("/receipt ")) { // Merged receipts for messages we sent
+                handleReceipt(message.split(" "));
+            } else if (message.startsWith("/typing ")) { // Typing indicator: /typing user room|private start|stop
+                handleTyping(message.split(" "));
+            } else if (isCachedBacklog(message)) {
+                continue; // Already shown from the local cache
+            } else {
+                if (!typingUsers.isEmpty() && message.indexOf(": ") > 0
+                        && typingUsers.remove(message.substring(0, message.indexOf(": "))) != null) {
+                    updateTypingLabel(); // The sender finished typing
+                }
+                publicBatch.add(formatLine(timestamp, message)); // Add the message to the main chat batch
+            }
+        }
+
+        if (latestUsers != null) {
+            updateUserList(latestUsers); // Update the user list once per batch
+        }
+        if (!publicBatch.isEmpty()) {
+            messageView.appendLines(publicBatch); // Single model update for all public lines
+        }
+        for (Map.Entry<String, List<String>> entry : privateBatches.entrySet()) {
+            openPrivateChat(entry.getKey()); // Open a private chat window with the sender
+            if (privateSeqs.containsKey(entry.getKey())) {
+                privateChats.get(entry.getKey()).noteLive(privateSeqs.get(entry.getKey())); // Not to be repeated by its history
+            }
+            privateChats.get(entry.getKey()).appendLines(entry.getValue());
+            privateChats.get(entry.getKey()).setPeerTyping(false); // The peer finished typing
+        }
+    }
+
+    // Route a line of private history to the window that asked for it; "/phistory peer end" completes it
+    private void handlePrivateHistory(String message) {
+        String[] parts = message.split(" ", 6);
+        PrivateChatWindow chatWindow = parts.length > 2 ? privateChats.get(parts[1]) : null;
+        if (chatWindow == null) {
+            return; // Window was closed meanwhile
+        }
+        if (parts.length == 3 && parts[2].equals("end")) {
+            chatWindow.historyEnd();
+        } else if (parts.length == 6) {
+            chatWindow.historyLine(Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4], parts[5]);
+        }
+    }
+
+    // Conversation a sequenced message belongs to: the sender of a private message, otherwise the room
+    private static String privateSender(String message) {
+        int senderEnd = message.indexOf(": ");
+        return message.startsWith("Private from ") && senderEnd > 13 ? message.substring(13, senderEnd) : "*";
+    }
+
+    // Whether the user is currently looking at a conversation
+    private boolean isConversationVisible(String conversation) {
+        if (conversation.equals("*")) {
+            return chatFrame.isActive();
+        }
+        PrivateChatWindow chatWindow = privateChats.get(conversation);
+        return chatWindow != null && chatWindow.isActive();
+    }
+
+    // Show receipts: "/receipt * seq delivered read" for the room, "/receipt peer delivered read" for private chats
+    private void handleReceipt(String[] parts) {
+        if (parts.length == 5 && parts[1].equals("*")) {
+            if (Long.parseLong(parts[2]) == lastRoomSent) { // Only the latest message is shown
+                receiptLabel.setText("Delivered to " + parts[3] + ", seen by " + parts[4] + " ");
+            }
+        } else if (parts.length == 4 && privateChats.containsKey(parts[1])) {
+            privateChats.get(parts[1]).receipt(Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+        }
+    }
+
+    // Show or clear a typing indicator
+    private void handleTyping(String[] parts) {
+        if (parts.length != 4 || parts[1].equals(username)) {
+            return;
+        }
+        boolean start = parts[3].equals("start");
+        if (parts[2].equals("private")) {
+            PrivateChatWindow chatWindow = privateChats.get(parts[1]);
+            if (chatWindow != null) { // Typing alone never opens a window
+                chatWindow.setPeerTyping(start);
+            }
+        } else {
+            if (start) {
+                typingUsers.put(parts[1], System.currentTimeMillis());
+            } else {
+                typingUsers.remove(parts[1]);
             }
+            updateTypingLabel();
+        }
+    }
+
+    // Drop room typing indicators that were not refreshed
+    private void expireTyping() {
+        long now = System.currentTimeMillis();
+        if (typingUsers.values().removeIf(seen -> now - seen > TYPING_TIMEOUT_MS)) {
+            updateTypingLabel();
+        }
+        for (PrivateChatWindow chatWindow : privateChats.values()) {
+            chatWindow.expireTyping(now);
+        }
+    }
+
+    // Show who is typing in the room
+    private void updateTypingLabel() {
+        if (typingUsers.isEmpty()) {
+            typingLabel.setText(" ");
+        } else if (typingUsers.size() > 3) {
+            typingLabel.setText("Several people are typing...");
+        } else {
+            typingLabel.setText(String.join(", ", typingUsers.keySet()) + (typingUsers.size() == 1 ? " is" : " are") + " typing...");
+        }
+    }
+
+    // Handle the file transfer notifications sent on the chat connection
+    private void handleFileCommand(String message, String timestamp, List<String> publicBatch) {
+        String[] parts = message.split(" ", 7); // The file name is the last field and may contain spaces
+        if (parts[1].equals("upload") && parts.length == 5) { // Server accepted an offer: /file upload ref id token
+            fileTransfers.upload(parts[2], parts[3], parts[4]);
+        } else if (parts[1].equals("error") && parts.length >= 3) { // Server rejected an offer: /file error ref reason
+            String recipient = fileTransfers.reject(parts[2]);
+            String reason = parts.length > 3 ? message.split(" ", 4)[3] : "";
+            if ("*".equals(recipient)) {
+                publicBatch.add(formatLine(timestamp, "File not shared: " + reason)); // In order with the rest of the batch
+            } else if (recipient != null && privateChats.containsKey(recipient)) {
+                privateChats.get(recipient).addMessage("File not sent: " + reason);
+            }
+        } else if (parts[1].equals("sent") && parts.length >= 4) { // Upload finished: /file sent recipient name
+            String name = message.split(" ", 4)[3];
+            if (parts[2].equals("*")) {
+                publicBatch.add(formatLine(timestamp, "File " + name + " is shared with the room."));
+            } else {
+                openPrivateChat(parts[2]);
+                privateChats.get(parts[2]).addMessage("File " + name + " is ready for " + parts[2] + ".");
+            }
+        } else if (parts[1].equals("ready") && parts.length == 7) { // File sent to us: /file ready hash sender size token name
+            SwingUtilities.invokeLater(() -> offerDownload(parts[3], parts[2], parts[5], Long.parseLong(parts[4]), parts[6]));
+        } else if (parts[1].equals("shared") && parts.length == 7) { // File shared in the room: /file shared hash sender size token name
+            String text = parts[3] + " shared a file: " + parts[6] + " (" + parts[4] + " bytes, double-click to save)";
+            sharedFiles.put(EMOJIS.replace(text), parts); // Fetched only if someone asks for it
+            if (!isCachedBacklog(text)) { // A replayed share is already shown from the cache
+                publicBatch.add(formatLine(timestamp, text));
+            }
+        }
+    }
+
+    // Ask whether to save a file a peer sent and start the download
+    private void offerDownload(String sender, String hash, String token, long size, String name) {
+        openPrivateChat(sender);
+        PrivateChatWindow chatWindow = privateChats.get(sender);
+        chatWindow.addMessage(sender + " sent you a file: " + name + " (" + size + " bytes)");
+        saveFile(chatWindow, sender, hash, token, name);
+    }
+
+    // Let the user pick where to save a file and download it there
+    private void saveFile(Component parent, String peer, String hash, String token, String name) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(name));
+        if (chooser.showSaveDialog(parent) == JFileChooser.APPROVE_OPTION) {
+            fileTransfers.download(peer, hash, token, chooser.getSelectedFile());
+        }
+    }
+
+    // Offer a file to the whole room
+    private void shareFile() {
+        if (out == null) {
+            return; // Not connected yet
+        }
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(chatFrame) == JFileChooser.APPROVE_OPTION) {
+            File file = chooser.getSelectedFile();
+            String ref = fileTransfers.offer(file, "*");
+            out.println("/file offer " + ref + " * " + file.length() + " " + file.getName());
+            addMessage("Sharing file " + file.getName() + "...");
+        }
+    }
+
+    // Remember the cached tail so lines the server replays on login are not shown twice
+    private void startBacklogDedupe() {
+        backlogOverlap.clear();
+        backlogMatched = false;
+        for (String line : messageView.latestLines(100)) {
+            String text = line.startsWith("[") ? line.substring(line.indexOf("] ") + 2) : line; // Drop the timestamp
+            if (text.startsWith("Me: ")) {
+                text = username + ": " + text.substring(4); // The server replays our own lines under our name
+            }
+            backlogOverlap.merge(text, 1, Integer::sum);
+        }
+    }
+
+    // Check whether a public line is part of the replayed history that is already cached
+    private boolean isCachedBacklog(String message) {
+        if (backlogOverlap.isEmpty()) {
+            return false;
+        }
+        String text = EMOJIS.replace(message); // Compared the way it was cached, after formatLine
+        Integer remaining = backlogOverlap.get(text);
+        if (remaining == null) {
+            if (backlogMatched) {
+                backlogOverlap.clear(); // Past the overlap, everything from here on is new
+            }
+            return false;
+        }
+        backlogMatched = true;
+        if (remaining == 1) {
+            backlogOverlap.remove(text);
+        } else {
+            backlogOverlap.put(text, remaining - 1);
+        }
+        return true;
+    }
+
+    // Format one chat line with its timestamp and emoji shortcodes replaced
+    private static String formatLine(String timestamp, String message) {
+        return "[" + timestamp + "] " + EMOJIS.replace(message);
+    }
+
+    // Open the local history file backing a conversation view
+    private LocalHistory openHistory(String conversation) {
+        if (localStore == null) {
+            return null; // No cache, the view only keeps what is in memory
+        }
+        try {
+            return localStore.history(conversation);
+        } catch (IOException e) {
+            e.printStackTrace(); // The view still works, it just cannot page older lines back in
+            return null;
         }
     }
 
     // Add a message to the main chat area with a timestamp
     private void addMessage(String message) {
-        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date()); // Create a timestamp
-        messageArea.append("[" + timestamp + "] " + message + "\n"); // Append the message to the message area
+        String timestamp = timestampFormat.format(new Date()); // Create a timestamp
+        messageView.appendLines(Collections.singletonList(formatLine(timestamp, message))); // Append the message to the message view
     }
 
     // Main method to start the chat client
@@ -0,0 +1,44 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Decodes "/z <base64>" frames sent by the server to clients announcing the "deflate" capability
+public class CompressedFrames {
+    public static final String PREFIX = "/z ";
+
+    // Text that typical traffic repeats; must match server.Compression.DICTIONARY
+    private static final byte[] DICTIONARY = ("/seq /sent * /receipt /typing /users /file shared /file ready "
+            + "Private from Private to : the and you that this have what with for are not just but is it to of in "
+            + "http://https://www. lol ok yes no thanks hello hey ").getBytes(StandardCharsets.UTF_8);
+
+    private final Inflater inflater = new Inflater(true); // Only used by the receiving thread
+    private final byte[] buffer = new byte[8192];
+
+    // Append the lines packed in a frame to the list
+    public void decode(String frame, List<String> lines) throws IOException {
+        byte[] compressed = Base64.getDecoder().decode(frame.substring(PREFIX.length()));
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(compressed.length * 4);
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY); // Raw streams carry no dictionary request, so it is set up front
+        inflater.setInput(compressed);
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                payload.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        lines.addAll(Arrays.asList(payload.toString("UTF-8").split("\n", -1)));
+    }
+}
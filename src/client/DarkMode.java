@@ -29,6 +29,7 @@ public class DarkMode {
 
     private Map<String, PrivateChatWindow> privateChats;
     private static final Map<String, String> emojiMap = new HashMap<>();
+    private static EmojiMatcher emojiMatcher;
     private boolean isDarkMode = false; // Current theme mode
 
     static {
@@ -39,6 +40,7 @@ public class DarkMode {
         emojiMap.put(":heart:", "❤️");
         emojiMap.put(":star:", "⭐");
         emojiMap.put(":fire:", "🔥");
+        emojiMatcher = new EmojiMatcher(emojiMap);
     }
 
     public DarkMode() {
@@ -292,10 +294,7 @@ public class DarkMode {
     }
 
     private String replaceEmojis(String message) {
-        for (Map.Entry<String, String> entry : emojiMap.entrySet()) {
-            message = message.replace(entry.getKey(), entry.getValue());
-        }
-        return message;
+        return emojiMatcher.replace(message);
     }
 
     public static void main(String[] args) {
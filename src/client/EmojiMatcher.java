@@ -0,0 +1,190 @@
+package client;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Replaces emoji shortcodes in a single pass using an Aho-Corasick automaton compiled from the shortcode map
+public class EmojiMatcher {
+    private final int[] asciiClass = new int[128]; // Alphabet class of each ASCII character, -1 if unused
+    private final char[] otherChars; // Sorted non-ASCII characters used by shortcodes
+    private final int asciiClasses; // Number of classes given to ASCII characters
+    private final int classes; // Alphabet size
+    private final int[] next; // Full transition table: next[state * classes + class]
+    private final int[] matchLength; // Length of the longest shortcode ending in each state, 0 if none
+    private final int[] matchIndex; // Replacement of that shortcode
+    private final String[] replacements; // Emoji per shortcode index
+    private final int start; // Character every shortcode starts with, like ':', or -1 if they differ
+
+    public EmojiMatcher(Map<String, String> shortcodes) {
+        List<String> codes = new ArrayList<>();
+        List<String> emojis = new ArrayList<>();
+        for (Map.Entry<String, String> entry : shortcodes.entrySet()) {
+            if (!entry.getKey().isEmpty()) {
+                codes.add(entry.getKey());
+                emojis.add(entry.getValue());
+            }
+        }
+        replacements = emojis.toArray(new String[0]);
+        int first = codes.isEmpty() ? -1 : codes.get(0).charAt(0);
+        for (String code : codes) {
+            if (code.charAt(0) != first) {
+                first = -1;
+            }
+        }
+        start = first;
+
+        // Compress the alphabet to the characters that actually occur in shortcodes
+        Arrays.fill(asciiClass, -1);
+        TreeSet<Character> others = new TreeSet<>();
+        int ascii = 0;
+        for (String code : codes) {
+            for (char c : code.toCharArray()) {
+                if (c < 128) {
+                    if (asciiClass[c] < 0) {
+                        asciiClass[c] = ascii++;
+                    }
+                } else {
+                    others.add(c);
+                }
+            }
+        }
+        asciiClasses = ascii;
+        otherChars = new char[others.size()];
+        int i = 0;
+        for (char c : others) {
+            otherChars[i++] = c;
+        }
+        classes = Math.max(1, ascii + otherChars.length);
+
+        // Build the trie
+        int maxStates = 1;
+        for (String code : codes) {
+            maxStates += code.length();
+        }
+        int[] goTo = new int[maxStates * classes];
+        Arrays.fill(goTo, -1);
+        int[] length = new int[maxStates];
+        int[] index = new int[maxStates];
+        int states = 1;
+        for (int c = 0; c < codes.size(); c++) {
+            String code = codes.get(c);
+            int state = 0;
+            for (int k = 0; k < code.length(); k++) {
+                int slot = state * classes + classOf(code.charAt(k));
+                if (goTo[slot] < 0) {
+                    goTo[slot] = states++;
+                }
+                state = goTo[slot];
+            }
+            length[state] = code.length();
+            index[state] = c;
+        }
+
+        // Breadth-first pass turning the trie into a complete automaton with failure transitions folded in
+        next = Arrays.copyOf(goTo, states * classes);
+        matchLength = Arrays.copyOf(length, states);
+        matchIndex = Arrays.copyOf(index, states);
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < classes; c++) {
+            if (next[c] < 0) {
+                next[c] = 0;
+            } else {
+                fail[next[c]] = 0;
+                queue.add(next[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            if (matchLength[state] == 0 && matchLength[fail[state]] > 0) { // Inherit the longest suffix match
+                matchLength[state] = matchLength[fail[state]];
+                matchIndex[state] = matchIndex[fail[state]];
+            }
+            for (int c = 0; c < classes; c++) {
+                int slot = state * classes + c;
+                if (next[slot] < 0) {
+                    next[slot] = next[fail[state] * classes + c];
+                } else {
+                    fail[next[slot]] = next[fail[state] * classes + c];
+                    queue.add(next[slot]);
+                }
+            }
+        }
+    }
+
+    // Replace every shortcode in the text; returns the same instance when there is nothing to replace
+    public String replace(String text) {
+        StringBuilder out = null; // Only allocated once a shortcode is found
+        int copied = 0;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (state == 0 && start >= 0) {
+                i = text.indexOf(start, i); // Nothing can start before it, and indexOf is far cheaper per character
+                if (i < 0) {
+                    break;
+                }
+            }
+            int c = classOf(text.charAt(i));
+            state = c < 0 ? 0 : next[state * classes + c];
+            int length = matchLength[state];
+            if (length > 0) {
+                if (out == null) {
+                    out = new StringBuilder(text.length() + 16);
+                }
+                out.append(text, copied, i + 1 - length).append(replacements[matchIndex[state]]);
+                copied = i + 1;
+                state = 0; // Matches never overlap
+            }
+        }
+        if (out == null) {
+            return text;
+        }
+        return out.append(text, copied, text.length()).toString();
+    }
+
+    // Alphabet class of a character, -1 if no shortcode contains it
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClass[c];
+        }
+        int i = Arrays.binarySearch(otherChars, c);
+        return i < 0 ? -1 : asciiClasses + i;
+    }
+
+    // Matcher for the built-in shortcodes plus the packs listed in chat.emoji.packs (comma separated files of "shortcode emoji" lines)
+    public static EmojiMatcher loadDefault() {
+        Map<String, String> shortcodes = new LinkedHashMap<>();
+        shortcodes.put(":smile:", "😊");
+        shortcodes.put(":sad:", "😢");
+        shortcodes.put(":laugh:", "😂");
+        shortcodes.put(":thumbs_up:", "👍");
+        shortcodes.put(":heart:", "❤️");
+        shortcodes.put(":star:", "⭐");
+        shortcodes.put(":fire:", "🔥");
+        String packs = System.getProperty("chat.emoji.packs", "");
+        for (String pack : packs.split(",")) {
+            if (pack.trim().isEmpty()) {
+                continue;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(pack.trim()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+", 2);
+                    if (parts.length == 2 && !parts[0].startsWith("#")) { // Skip comments and blank lines
+                        shortcodes.put(parts[0], parts[1]);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // A broken pack does not disable the others
+            }
+        }
+        return new EmojiMatcher(shortcodes);
+    }
+}
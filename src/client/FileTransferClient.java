@@ -0,0 +1,203 @@
+package client;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+// Sends and receives files over the server's file transfer port instead of the chat connection
+public class FileTransferClient {
+    public static final int CHUNK_SIZE = 256 * 1024; // Must match the server's chunk size
+    private static final int MAX_ATTEMPTS = 5; // Connection attempts before a transfer is given up
+    private static final long RETRY_DELAY_MS = 2000; // Delay before resuming after a failed attempt
+
+    private final String host; // File transfer server address
+    private final int port; // File transfer server port
+    private final Listener listener; // Receives progress messages for the UI
+    private final Map<String, Upload> pendingUploads = new ConcurrentHashMap<>(); // Offered files waiting for an upload token
+    private final AtomicInteger nextRef = new AtomicInteger(); // Source of offer references
+
+    // Receives human readable progress updates about a conversation's transfers
+    public interface Listener {
+        void transferUpdate(String peer, String text);
+    }
+
+    // A file offered to a recipient
+    private static class Upload {
+        final File file;
+        final String recipient;
+
+        Upload(File file, String recipient) {
+            this.file = file;
+            this.recipient = recipient;
+        }
+    }
+
+    public FileTransferClient(String host, int port, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+    }
+
+    // Remember a file being offered and return the reference to send with the offer
+    public String offer(File file, String recipient) {
+        String ref = Integer.toString(nextRef.incrementAndGet());
+        pendingUploads.put(ref, new Upload(file, recipient));
+        return ref;
+    }
+
+    // Forget an offer the server rejected, returning its recipient
+    public String reject(String ref) {
+        Upload upload = pendingUploads.remove(ref);
+        return upload != null ? upload.recipient : null;
+    }
+
+    // Upload an offered file once the server assigned it a transfer
+    public void upload(String ref, String id, String token) {
+        Upload upload = pendingUploads.remove(ref);
+        if (upload == null) {
+            return; // Not an offer made by this client
+        }
+        start("file-upload", upload.recipient, "Upload of " + upload.file.getName(), () -> sendFile(upload.file, id, token));
+    }
+
+    // Download a stored file by its hash into the target, resuming from a partial download if there is one; the
+    // token is the one the server sent with the announcement
+    public void download(String peer, String hash, String token, File target) {
+        start("file-download", peer, "Download of " + target.getName(), () -> receiveFile(hash, token, target));
+    }
+
+    // One attempt at a transfer; returns normally once the transfer is complete
+    private interface Attempt {
+        void run() throws IOException;
+    }
+
+    // Run a transfer on its own thread, resuming after connection failures
+    private void start(String threadName, String peer, String what, Attempt attempt) {
+        Thread thread = new Thread(() -> {
+            for (int i = 1; i <= MAX_ATTEMPTS; i++) {
+                try {
+                    attempt.run();
+                    listener.transferUpdate(peer, what + " finished.");
+                    return;
+                } catch (IOException e) {
+                    listener.transferUpdate(peer, what + " interrupted (" + e.getMessage() + "), attempt " + i + " of " + MAX_ATTEMPTS + ".");
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS * i); // Back off before resuming
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            listener.transferUpdate(peer, what + " failed.");
+        }, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Send the file in checksummed chunks, starting at the offset the server already has
+    private void sendFile(File file, String id, String token) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 8));
+            writeLine(out, "UPLOAD " + id + " " + token);
+            String[] reply = readLine(in).split(" ");
+            if (reply[0].equals("DONE")) {
+                return; // Server already has the whole file
+            }
+            if (!reply[0].equals("OFFSET")) {
+                throw new IOException(String.join(" ", reply));
+            }
+            long position = Long.parseLong(reply[1]);
+            long size = channel.size();
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            CRC32 crc = new CRC32();
+            while (position < size) {
+                chunk.clear().limit((int) Math.min(CHUNK_SIZE, size - position));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, position + chunk.position()) < 0) {
+                        throw new IOException("File changed while uploading");
+                    }
+                }
+                crc.reset();
+                crc.update(chunk.array(), 0, chunk.limit());
+                out.writeInt(chunk.limit());
+                out.writeInt((int) crc.getValue());
+                out.write(chunk.array(), 0, chunk.limit());
+                position += chunk.limit();
+            }
+            out.flush();
+            String result = readLine(in);
+            if (!result.equals("DONE")) {
+                throw new IOException(result);
+            }
+        }
+    }
+
+    // Receive the file in checksummed chunks into a partial file, renamed once complete
+    private void receiveFile(String hash, String token, File target) throws IOException {
+        File part = new File(target.getPath() + ".part");
+        long offset = part.length() / CHUNK_SIZE * CHUNK_SIZE; // Keep only whole, verified chunks
+        try (Socket socket = new Socket(host, port);
+             FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE + 8));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeLine(out, "GET " + hash + " " + token + " " + offset + " -1"); // Everything from the offset on
+            String[] reply = readLine(in).split(" ");
+            if (!reply[0].equals("RANGE")) { // RANGE size start end
+                throw new IOException(String.join(" ", reply));
+            }
+            long position = Long.parseLong(reply[2]);
+            long size = Long.parseLong(reply[3]);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            CRC32 crc = new CRC32();
+            while (position < size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > CHUNK_SIZE) {
+                    throw new IOException("Bad chunk size " + length);
+                }
+                in.readFully(chunk, 0, length);
+                crc.reset();
+                crc.update(chunk, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Checksum mismatch"); // Resume refetches this chunk
+                }
+                channel.write(ByteBuffer.wrap(chunk, 0, length), position);
+                position += length;
+            }
+            channel.force(false);
+        }
+        if (!part.renameTo(target)) {
+            throw new IOException("Could not rename " + part + " to " + target.getName());
+        }
+    }
+
+    // Write one ASCII request line
+    private static void writeLine(DataOutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    // Read one ASCII response line
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed");
+            }
+            line.append((char) c);
+        }
+        return line.toString().trim();
+    }
+}
@@ -0,0 +1,130 @@
+package client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Append-only file of displayed chat lines with a fixed-width offset index, paged back in on demand
+public class LocalHistory implements Closeable {
+    private final RandomAccessFile file; // Length-prefixed UTF-8 lines
+    private final RandomAccessFile indexFile; // One 8-byte file offset per line
+    private long[] offsets = new long[1024]; // File offset of each line, indexed by line number
+    private int count; // Number of lines stored
+    private long end; // Offset where the next line will be written
+    private AppendListener listener; // Notified after lines are written
+
+    // Callback for lines that were just written
+    public interface AppendListener {
+        void linesAppended(int firstLine, List<String> lines);
+    }
+
+    public LocalHistory(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        indexFile = new RandomAccessFile(new File(path.getPath() + ".idx"), "rw");
+        load();
+    }
+
+    // Load the offset index with one read and drop anything a crash left half written; lines are written back to
+    // back, so consecutive offsets already vouch for every line but the last, which is the only one read from the file
+    private void load() throws IOException {
+        int entries = (int) (indexFile.length() / 8);
+        byte[] bytes = new byte[entries * 8];
+        indexFile.seek(0);
+        indexFile.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        offsets = new long[Math.max(1024, entries)];
+        long length = file.length();
+        long expected = 0; // Earliest offset the next line can have
+        while (count < entries) {
+            long offset = buffer.getLong();
+            if (offset < expected || offset + 4 > length) {
+                break; // Index out of order or pointing past the end of the data file
+            }
+            offsets[count++] = offset;
+            expected = offset + 4;
+        }
+        while (count > 0) {
+            file.seek(offsets[count - 1]);
+            int size = file.readInt();
+            long next = offsets[count - 1] + 4 + size;
+            if (size >= 0 && next <= length) {
+                end = next;
+                break;
+            }
+            count--; // Line was only partially written
+        }
+        file.setLength(end);
+        indexFile.setLength(count * 8L);
+    }
+
+    // Register the callback notified after lines are written
+    public synchronized void setListener(AppendListener listener) {
+        this.listener = listener;
+    }
+
+    // Number of lines stored
+    public synchronized int size() {
+        return count;
+    }
+
+    // Append lines with a single write to each file
+    public synchronized void append(List<String> lines) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buffer);
+        ByteBuffer index = ByteBuffer.allocate(lines.size() * 8);
+        if (offsets.length < count + lines.size()) {
+            offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, count + lines.size()));
+        }
+        int first = count;
+        long position = end;
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            index.putLong(position);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+            position += 4 + bytes.length;
+        }
+        file.seek(end);
+        file.write(buffer.toByteArray());
+        indexFile.seek(count * 8L);
+        indexFile.write(index.array());
+        index.flip();
+        for (int i = 0; i < lines.size(); i++) {
+            offsets[count + i] = index.getLong();
+        }
+        end = position;
+        count += lines.size(); // Lines become visible only once they are on disk
+        if (listener != null) {
+            listener.linesAppended(first, lines);
+        }
+    }
+
+    // Read lines [from, to) with a single read
+    public synchronized List<String> read(int from, int to) throws IOException {
+        List<String> lines = new ArrayList<>(Math.max(0, to - from));
+        if (from >= to) {
+            return lines;
+        }
+        long start = offsets[from];
+        long stop = to < count ? offsets[to] : end;
+        byte[] bytes = new byte[(int) (stop - start)];
+        file.seek(start);
+        file.readFully(bytes);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        for (int i = from; i < to; i++) {
+            byte[] line = new byte[data.readInt()];
+            data.readFully(line);
+            lines.add(new String(line, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+        indexFile.close();
+    }
+}
@@ -0,0 +1,186 @@
+package client;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Per-user on-disk cache of public and private conversations with an incrementally built search index
+public class LocalMessageStore implements Closeable {
+    public static final String PUBLIC = "public"; // Conversation name of the main chat room
+    private static final File ROOT = new File(System.getProperty("chat.cache.dir",
+            System.getProperty("user.home") + File.separator + ".messagingapp")); // Directory holding every user's cache
+    private static final int CATCH_UP_PAGE = 1000; // Lines read per step while indexing lines missing from the snapshot
+    private static final int SNAPSHOT_INTERVAL = 50000; // Lines indexed between two index snapshots
+
+    private final File directory; // This user's cache directory
+    private final File conversationsFile; // Conversation names, one per line, in id order
+    private final File snapshotFile; // Last saved search index
+    private final List<String> conversations = new ArrayList<>(); // Conversation names by id
+    private final Map<String, LocalHistory> histories = new HashMap<>(); // Open conversation files by name
+    private final SearchIndex index = new SearchIndex(); // Only touched from the indexer thread
+    private final ExecutorService indexer; // Single thread owning the search index
+    private int linesSinceSnapshot; // Lines indexed since the index was last saved
+
+    // One search result
+    public static class Hit {
+        public final String conversation; // Conversation the line belongs to
+        public final String line; // The stored chat line
+
+        Hit(String conversation, String line) {
+            this.conversation = conversation;
+            this.line = line;
+        }
+    }
+
+    public LocalMessageStore(String username) throws IOException {
+        directory = new File(ROOT, username.replaceAll("[^A-Za-z0-9_-]", "_"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        conversationsFile = new File(directory, "conversations.txt");
+        snapshotFile = new File(directory, "search.idx");
+        if (conversationsFile.exists()) {
+            conversations.addAll(Files.readAllLines(conversationsFile.toPath(), StandardCharsets.UTF_8));
+        }
+        indexer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "local-search-index");
+            thread.setDaemon(true); // Never keep the client alive
+            return thread;
+        });
+        indexer.execute(this::loadIndex); // Runs before any newly appended line is indexed
+    }
+
+    // Open (or create) the history of a conversation
+    public synchronized LocalHistory history(String conversation) throws IOException {
+        LocalHistory history = histories.get(conversation);
+        if (history == null) {
+            int id = conversationId(conversation);
+            history = new LocalHistory(new File(directory, "conversation-" + id + ".log"));
+            history.setListener((firstLine, lines) -> {
+                if (!indexer.isShutdown()) { // Lines written while closing are picked up by the next catch-up
+                    indexer.execute(() -> indexLines(id, firstLine, lines));
+                }
+            });
+            histories.put(conversation, history);
+        }
+        return history;
+    }
+
+    // Search every conversation for lines containing all words of the query, newest first
+    public CompletableFuture<List<Hit>> search(String query, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Hit> hits = new ArrayList<>();
+            for (long ref : index.search(query, limit)) {
+                int id = (int) (ref >>> 32);
+                int line = (int) ref;
+                try {
+                    String conversation = conversationName(id);
+                    LocalHistory history = history(conversation);
+                    if (line >= history.size()) {
+                        continue; // Indexed before a torn tail was cut off
+                    }
+                    hits.add(new Hit(conversation, history.read(line, line + 1).get(0)));
+                } catch (IOException e) {
+                    e.printStackTrace(); // Skip lines that can no longer be read
+                }
+            }
+            return hits;
+        }, indexer);
+    }
+
+    // Look up the id of a conversation, registering it on first use
+    private int conversationId(String conversation) throws IOException {
+        int id = conversations.indexOf(conversation);
+        if (id < 0) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(conversationsFile, true), StandardCharsets.UTF_8)) {
+                writer.write(conversation + "\n");
+            }
+            conversations.add(conversation);
+            id = conversations.size() - 1;
+        }
+        return id;
+    }
+
+    // Name of the conversation with the given id
+    private synchronized String conversationName(int id) {
+        return conversations.get(id);
+    }
+
+    // Load the saved index and index whatever was stored after it was taken
+    private void loadIndex() {
+        try {
+            index.load(snapshotFile);
+        } catch (IOException e) {
+            e.printStackTrace(); // Fall back to indexing everything again
+        }
+        int known;
+        synchronized (this) {
+            known = conversations.size();
+        }
+        for (int id = 0; id < known; id++) {
+            try {
+                if (index.indexedLines(id) > history(conversationName(id)).size()) {
+                    index.clear(); // Lines were cut off after the snapshot; their line numbers get reused, so start over
+                    break;
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // Caught again below
+            }
+        }
+        for (int id = 0; id < known; id++) {
+            try {
+                LocalHistory history = history(conversationName(id));
+                for (int from = index.indexedLines(id); from < history.size(); from += CATCH_UP_PAGE) {
+                    indexLines(id, from, history.read(from, Math.min(history.size(), from + CATCH_UP_PAGE)));
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // Leave this conversation unsearchable
+            }
+        }
+    }
+
+    // Index new lines and save the index from time to time
+    private void indexLines(int id, int firstLine, List<String> lines) {
+        index.add(id, firstLine, lines);
+        linesSinceSnapshot += lines.size();
+        if (linesSinceSnapshot >= SNAPSHOT_INTERVAL) {
+            saveIndex();
+        }
+    }
+
+    // Save the index so the next start does not have to rebuild it
+    private void saveIndex() {
+        try {
+            index.save(snapshotFile);
+            linesSinceSnapshot = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Save the index and close every conversation file
+    @Override
+    public void close() throws IOException {
+        indexer.execute(this::saveIndex);
+        indexer.shutdown();
+        try {
+            indexer.awaitTermination(5, TimeUnit.SECONDS); // Pending lines are indexed before the snapshot is taken
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (LocalHistory history : histories.values()) {
+                history.close();
+            }
+            histories.clear();
+        }
+    }
+}
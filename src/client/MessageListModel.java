@@ -0,0 +1,94 @@
+package client;
+
+import javax.swing.*;
+import java.util.List;
+
+// List model holding a bounded window of chat lines in a ring buffer
+public class MessageListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L; // Swing models are Serializable, this one is never serialized
+    private final String[] rows; // Ring buffer of rows
+    private int head; // Index in rows of the first row
+    private int size; // Number of rows currently held
+
+    public MessageListModel(int capacity) {
+        rows = new String[Math.max(1, capacity)]; // Always keep room for at least one row
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return rows[(head + index) % rows.length];
+    }
+
+    // Maximum number of rows kept in memory
+    public int capacity() {
+        return rows.length;
+    }
+
+    // Append lines after the newest row, evicting the oldest rows; returns how many rows were evicted
+    public int addLast(List<String> lines) {
+        int skip = Math.max(0, lines.size() - rows.length); // Lines that would be evicted right away
+        int added = lines.size() - skip;
+        int evicted = Math.max(0, size + added - rows.length);
+        if (evicted > 0) {
+            removeFirst(evicted);
+        }
+        for (int i = skip; i < lines.size(); i++) {
+            rows[(head + size) % rows.length] = lines.get(i);
+            size++;
+        }
+        if (added > 0) {
+            fireIntervalAdded(this, size - added, size - 1); // Only the new rows need to be laid out
+        }
+        return evicted + skip;
+    }
+
+    // Insert older lines before the oldest row, evicting the newest rows; returns how many rows were evicted
+    public int addFirst(List<String> lines) {
+        int added = Math.min(lines.size(), rows.length); // Keep the newest of the older lines
+        int evicted = Math.max(0, size + added - rows.length);
+        if (evicted > 0) {
+            removeLast(evicted);
+        }
+        for (int i = lines.size() - 1; i >= lines.size() - added; i--) {
+            head = (head - 1 + rows.length) % rows.length;
+            rows[head] = lines.get(i);
+            size++;
+        }
+        if (added > 0) {
+            fireIntervalAdded(this, 0, added - 1);
+        }
+        return evicted;
+    }
+
+    // Drop every row
+    public void clear() {
+        int oldSize = size;
+        if (oldSize > 0) {
+            removeFirst(oldSize);
+        }
+    }
+
+    // Remove the given number of oldest rows
+    private void removeFirst(int count) {
+        for (int i = 0; i < count; i++) {
+            rows[head] = null; // Let the evicted line be collected
+            head = (head + 1) % rows.length;
+        }
+        size -= count;
+        fireIntervalRemoved(this, 0, count - 1);
+    }
+
+    // Remove the given number of newest rows
+    private void removeLast(int count) {
+        for (int i = 0; i < count; i++) {
+            rows[(head + size - 1 - i) % rows.length] = null; // Let the evicted line be collected
+        }
+        size -= count;
+        fireIntervalRemoved(this, size, size + count - 1);
+    }
+}
@@ -0,0 +1,172 @@
+package client;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Scrollable chat view that keeps a bounded window of lines in memory and pages the rest from local history
+public class MessageView extends JScrollPane {
+    private static final long serialVersionUID = 1L; // Inherited from JScrollPane; views are never serialized
+    private static final int RETENTION_LIMIT = Integer.getInteger("chat.retention", 1000); // Rows kept in memory
+    private static final int PAGE_SIZE = Math.max(1, Math.min(200, RETENTION_LIMIT / 2)); // Rows loaded per scroll step
+
+    private final MessageListModel model; // Rows currently held in memory
+    private final JList<String> list; // Only lays out the visible rows
+    private LocalHistory history; // Full record of the conversation, null if it could not be written
+    private int historySize; // Number of lines in the conversation
+    private int first; // Line number of the first row held by the model
+    private int widestRow; // Pixel width of the widest row seen so far
+
+    public MessageView(LocalHistory history) {
+        this.history = history;
+        model = new MessageListModel(RETENTION_LIMIT);
+        list = new JList<>(model) {
+            @Override
+            public String getToolTipText(MouseEvent e) {
+                int index = locationToIndex(e.getPoint()); // Show the full line for rows cut off by the view
+                return index >= 0 ? model.getElementAt(index) : null;
+            }
+        };
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2); // Fixed sizes avoid measuring every row
+        list.setFixedCellWidth(1);
+        ToolTipManager.sharedInstance().registerComponent(list);
+        setViewportView(list);
+
+        getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValueIsAdjusting()) {
+                return; // Wait until the user releases the scroll bar
+            }
+            JScrollBar bar = getVerticalScrollBar();
+            if (bar.getValue() == bar.getMinimum() && first > 0) {
+                loadOlder(); // Reached the top of the window
+            } else if (isAtBottom() && first + model.getSize() < historySize) {
+                loadNewer(); // Reached the bottom of a window that was scrolled back
+            }
+        });
+        showLatest();
+    }
+
+    // Fill the view with the newest page of an existing history
+    private void showLatest() {
+        if (history == null) {
+            return;
+        }
+        historySize = history.size();
+        first = Math.max(0, historySize - PAGE_SIZE);
+        List<String> lines = readHistory(first, historySize);
+        if (lines == null) {
+            first = historySize; // Start empty, new lines still get appended
+            return;
+        }
+        model.addLast(lines);
+        trackWidth(lines);
+        SwingUtilities.invokeLater(() -> list.ensureIndexIsVisible(model.getSize() - 1));
+    }
+
+    // Newest lines currently held by the view, oldest first
+    public List<String> latestLines(int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = Math.max(0, model.getSize() - count); i < model.getSize(); i++) {
+            lines.add(model.getElementAt(i));
+        }
+        return lines;
+    }
+
+    // Add new lines at the end of the conversation
+    public void appendLines(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        boolean atTail = first + model.getSize() == historySize; // Window currently shows the newest lines
+        boolean follow = isAtBottom();
+        if (history != null) {
+            try {
+                history.append(lines);
+            } catch (IOException e) {
+                e.printStackTrace(); // Keep working as a plain bounded view
+                history = null;
+            }
+        }
+        historySize += lines.size();
+        if (atTail || history == null) {
+            first += model.addLast(lines);
+            trackWidth(lines);
+            if (follow) {
+                list.ensureIndexIsVisible(model.getSize() - 1); // Keep following the conversation
+            }
+        }
+    }
+
+    // Load the page before the first row and keep the visible rows in place
+    private void loadOlder() {
+        int from = Math.max(0, first - PAGE_SIZE);
+        List<String> lines = readHistory(from, first);
+        if (lines == null || lines.isEmpty()) {
+            return;
+        }
+        JScrollBar bar = getVerticalScrollBar();
+        int value = bar.getValue();
+        model.addFirst(lines);
+        first = from;
+        trackWidth(lines);
+        list.revalidate();
+        SwingUtilities.invokeLater(() -> bar.setValue(value + lines.size() * list.getFixedCellHeight()));
+    }
+
+    // Load the page after the last row and keep the visible rows in place
+    private void loadNewer() {
+        int from = first + model.getSize();
+        List<String> lines = readHistory(from, Math.min(historySize, from + PAGE_SIZE));
+        if (lines == null || lines.isEmpty()) {
+            return;
+        }
+        JScrollBar bar = getVerticalScrollBar();
+        int value = bar.getValue();
+        int evicted = model.addLast(lines);
+        first += evicted;
+        trackWidth(lines);
+        list.revalidate();
+        SwingUtilities.invokeLater(() -> bar.setValue(value - evicted * list.getFixedCellHeight()));
+    }
+
+    // Read a range of lines from local history
+    private List<String> readHistory(int from, int to) {
+        if (history == null) {
+            return null;
+        }
+        try {
+            return history.read(from, to);
+        } catch (IOException e) {
+            e.printStackTrace(); // Paging is not possible without the history file
+            return null;
+        }
+    }
+
+    // Check whether the view is scrolled to the last row
+    private boolean isAtBottom() {
+        JScrollBar bar = getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+    }
+
+    // Widen the rows when a longer line arrives so the horizontal scroll bar still works
+    private void trackWidth(List<String> lines) {
+        FontMetrics metrics = list.getFontMetrics(list.getFont());
+        int widest = widestRow;
+        for (String line : lines) {
+            widest = Math.max(widest, metrics.stringWidth(line) + 8);
+        }
+        if (widest != widestRow) {
+            widestRow = widest;
+            list.setFixedCellWidth(widest);
+        }
+    }
+
+    // The list holding the rows, for styling
+    public JList<String> getList() {
+        return list;
+    }
+}
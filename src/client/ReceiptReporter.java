@@ -0,0 +1,54 @@
+package client;
+
+import javax.swing.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Tracks the highest seq delivered and read per conversation and reports both cumulatively on a timer; EDT only
+public class ReceiptReporter {
+    private static final int REPORT_INTERVAL_MS = 2000; // One acknowledgement per changed conversation per interval
+
+    private final Consumer<String> send; // Sends a protocol line to the server
+    private final Predicate<String> isVisible; // Whether the user is looking at a conversation
+    private final Map<String, long[]> conversations = new HashMap<>(); // {delivered, read, reportedDelivered, reportedRead}
+    private final Timer timer; // Sends the pending acknowledgements
+
+    public ReceiptReporter(Consumer<String> send, Predicate<String> isVisible) {
+        this.send = send;
+        this.isVisible = isVisible;
+        timer = new Timer(REPORT_INTERVAL_MS, e -> report());
+    }
+
+    // Start reporting
+    public void start() {
+        timer.start();
+    }
+
+    // Stop reporting
+    public void stop() {
+        timer.stop();
+    }
+
+    // A message with the given seq arrived in a conversation ("*" for the room, otherwise the peer)
+    public void delivered(String conversation, long seq) {
+        long[] state = conversations.computeIfAbsent(conversation, k -> new long[4]);
+        state[0] = Math.max(state[0], seq);
+    }
+
+    // Send one cumulative acknowledgement for every conversation that changed
+    private void report() {
+        for (Map.Entry<String, long[]> entry : conversations.entrySet()) {
+            long[] state = entry.getValue();
+            if (isVisible.test(entry.getKey())) {
+                state[1] = state[0]; // Everything delivered to a visible conversation counts as read
+            }
+            if (state[0] != state[2] || state[1] != state[3]) {
+                send.accept("/ack " + entry.getKey() + " " + state[0] + " " + state[1]);
+                state[2] = state[0];
+                state[3] = state[1];
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package client;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Inverted index from lowercase words to the chat lines containing them, owned by a single indexing thread
+public class SearchIndex {
+    private static final int SNAPSHOT_VERSION = 1; // Format version of the snapshot file
+
+    private final Map<String, Postings> postings = new HashMap<>(); // Word -> lines containing it
+    private int[] indexedLines = new int[8]; // Lines already indexed, per conversation id
+
+    // Growable list of line references, each packed as (conversation id << 32) | line number
+    private static class Postings {
+        private long[] refs = new long[4];
+        private int size;
+        private boolean sorted = true; // Lines from different conversations can be added out of order
+
+        void add(long ref) {
+            if (size > 0 && refs[size - 1] == ref) {
+                return; // Word repeated within the same line
+            }
+            if (size == refs.length) {
+                refs = Arrays.copyOf(refs, size * 2);
+            }
+            if (size > 0 && refs[size - 1] > ref) {
+                sorted = false;
+            }
+            refs[size++] = ref;
+        }
+
+        long[] sortedRefs() {
+            if (!sorted) {
+                Arrays.sort(refs, 0, size);
+                sorted = true;
+            }
+            return refs;
+        }
+    }
+
+    // Pack a conversation id and line number into one reference
+    public static long ref(int conversation, int line) {
+        return ((long) conversation << 32) | (line & 0xffffffffL);
+    }
+
+    // Number of lines of a conversation that are already indexed
+    public int indexedLines(int conversation) {
+        return conversation < indexedLines.length ? indexedLines[conversation] : 0;
+    }
+
+    // Forget everything, for an index that no longer matches the stored lines
+    public void clear() {
+        postings.clear();
+        indexedLines = new int[8];
+    }
+
+    // Index lines of a conversation starting at the given line number, skipping lines indexed before
+    public void add(int conversation, int firstLine, List<String> lines) {
+        if (conversation >= indexedLines.length) {
+            indexedLines = Arrays.copyOf(indexedLines, Math.max(indexedLines.length * 2, conversation + 1));
+        }
+        for (int i = Math.max(0, indexedLines[conversation] - firstLine); i < lines.size(); i++) {
+            long ref = ref(conversation, firstLine + i);
+            for (String word : tokenize(lines.get(i))) {
+                postings.computeIfAbsent(word, k -> new Postings()).add(ref);
+            }
+        }
+        indexedLines[conversation] = Math.max(indexedLines[conversation], firstLine + lines.size());
+    }
+
+    // Find the newest lines containing every word of the query
+    public long[] search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return new long[0];
+        }
+        Postings rarest = null;
+        List<Postings> others = new ArrayList<>();
+        for (String word : words) {
+            Postings list = postings.get(word);
+            if (list == null) {
+                return new long[0]; // A word that never occurs matches nothing
+            }
+            if (rarest == null || list.size < rarest.size) {
+                if (rarest != null) {
+                    others.add(rarest);
+                }
+                rarest = list;
+            } else {
+                others.add(list);
+            }
+        }
+        long[] candidates = rarest.sortedRefs();
+        long[] hits = new long[Math.min(limit, rarest.size)];
+        int found = 0;
+        for (int i = rarest.size - 1; i >= 0 && found < hits.length; i--) { // Newest lines first
+            boolean match = true;
+            for (Postings other : others) {
+                if (Arrays.binarySearch(other.sortedRefs(), 0, other.size, candidates[i]) < 0) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                hits[found++] = candidates[i];
+            }
+        }
+        return Arrays.copyOf(hits, found);
+    }
+
+    // Split a line into lowercase words, ignoring the leading timestamp
+    public static List<String> tokenize(String line) {
+        List<String> words = new ArrayList<>();
+        int start = line.startsWith("[") ? Math.max(0, line.indexOf("] ") + 1) : 0;
+        int wordStart = -1;
+        for (int i = start; i <= line.length(); i++) {
+            boolean letter = i < line.length() && Character.isLetterOrDigit(line.charAt(i));
+            if (letter && wordStart < 0) {
+                wordStart = i;
+            } else if (!letter && wordStart >= 0) {
+                words.add(line.substring(wordStart, i).toLowerCase(Locale.ROOT)); // The index on disk must not depend on the locale
+                wordStart = -1;
+            }
+        }
+        return words;
+    }
+
+    // Write the whole index so the next start only has to index newer lines
+    public void save(File path) throws IOException {
+        File temp = new File(path.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(indexedLines.length);
+            for (int lines : indexedLines) {
+                out.writeInt(lines);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                long[] refs = entry.getValue().sortedRefs();
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size);
+                for (int i = 0; i < entry.getValue().size; i++) {
+                    out.writeLong(refs[i]);
+                }
+            }
+        }
+        if (!temp.renameTo(path)) { // Replace the old snapshot only once the new one is complete
+            path.delete();
+            if (!temp.renameTo(path)) {
+                throw new IOException("Could not replace " + path);
+            }
+        }
+    }
+
+    // Load a snapshot written by save; a missing or unreadable snapshot leaves the index empty
+    public void load(File path) throws IOException {
+        if (!path.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                return; // Old format, everything gets indexed again
+            }
+            int[] lines = new int[in.readInt()];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = in.readInt();
+            }
+            int terms = in.readInt();
+            Map<String, Postings> loaded = new HashMap<>(terms * 2);
+            for (int t = 0; t < terms; t++) {
+                String word = in.readUTF();
+                Postings list = new Postings();
+                list.size = in.readInt();
+                list.refs = new long[Math.max(4, list.size)];
+                for (int i = 0; i < list.size; i++) {
+                    list.refs[i] = in.readLong();
+                }
+                loaded.put(word, list);
+            }
+            postings.clear();
+            postings.putAll(loaded);
+            indexedLines = lines.length > 0 ? lines : new int[8];
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package client;
+
+import javax.swing.*;
+import java.util.function.Consumer;
+
+// Turns keystrokes in one input field into throttled typing start/stop signals; used on the EDT only
+public class TypingNotifier {
+    private static final int REFRESH_MS = 3000; // A start signal is repeated at most this often while typing
+    private static final int IDLE_MS = 4000; // Pause after which a stop signal is sent
+
+    private final Consumer<String> send; // Sends a protocol line to the server
+    private final String target; // Peer username, or "*" for the room
+    private final Timer idleTimer; // Fires once typing paused
+    private boolean typing; // Whether a start signal is outstanding
+    private long lastStart; // When the last start signal was sent
+
+    public TypingNotifier(Consumer<String> send, String target) {
+        this.send = send;
+        this.target = target;
+        idleTimer = new Timer(IDLE_MS, e -> stop());
+        idleTimer.setRepeats(false);
+    }
+
+    // Called for every keystroke in the input field
+    public void keyTyped() {
+        long now = System.currentTimeMillis();
+        if (!typing || now - lastStart >= REFRESH_MS) { // Keep the peer's indicator alive without flooding it
+            send.accept("/typing " + target + " start");
+            typing = true;
+            lastStart = now;
+        }
+        idleTimer.restart();
+    }
+
+    // Called when the message was sent or typing paused
+    public void stop() {
+        idleTimer.stop();
+        if (typing) {
+            send.accept("/typing " + target + " stop");
+            typing = false;
+        }
+    }
+}
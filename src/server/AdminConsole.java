@@ -0,0 +1,198 @@
+package server;
+
+import java.io.*;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Operator console on a loopback-only port: one command per line, answered in plain text. Everything it shows is read
+// from counters and snapshots, so looking at a busy server never holds up its message path
+class AdminConsole extends Thread {
+    private static final int PORT = Integer.getInteger("chat.admin.port", 12347); // Loopback port, 0 disables the console
+    private static final int STACK_DEPTH = 12; // Frames shown per thread by "threads"
+    private static final String HELP = String.join("\n",
+            "status                      online sessions, history, admission, buffers and log figures",
+            "sessions                    one line per session: user address online in out queued=control/private/live/bulk writing caps",
+            "disconnect user             close a session, the client reconnects",
+            "kick user [reason]          close a session and tell the client not to reconnect",
+            "limits                      connection limits",
+            "limit name value            change a connection limit",
+            "level [debug|info|warn|error]  show or change the event log level",
+            "threads [all]               lock contention, then stacks of threads that are blocked or hold locks, or of all threads",
+            "quit                        close the console");
+
+    private volatile ServerSocket listener; // Listening socket, closed when the server drains
+
+    AdminConsole() {
+        super("admin-console");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        if (PORT == 0) {
+            return;
+        }
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReuseAddress(true); // A replacement process binds as soon as this one lets go
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT)); // Local operators only
+            listener = server;
+            EventLog.info("admin-listening", "port", PORT);
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                Thread session = new Thread(() -> serve(socket), "admin-session");
+                session.setDaemon(true);
+                session.start();
+            }
+        } catch (IOException e) {
+            if (listener == null || !listener.isClosed()) {
+                EventLog.error("admin-listen-failed", e, "port", PORT); // Print error if the admin port cannot be used
+            }
+        }
+    }
+
+    // Stop accepting operators; open console sessions end with the process
+    void stopListening() {
+        ServerSocket server = listener;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                EventLog.error("admin-close-failed", e); // Print error if the socket cannot be closed
+            }
+        }
+    }
+
+    // Answer commands from one operator connection until it sends quit or goes away
+    private void serve(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            out.println("Chat server admin console, type help for commands");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+", 3);
+                if (parts[0].equals("quit")) {
+                    return;
+                }
+                if (!parts[0].isEmpty()) {
+                    EventLog.info("admin-command", "command", line.trim(), "remote", client.getRemoteSocketAddress());
+                    out.println(execute(parts));
+                }
+            }
+        } catch (IOException e) {
+            // The operator went away
+        }
+    }
+
+    // Run one command and return its output
+    private static String execute(String[] parts) {
+        switch (parts[0]) {
+            case "help":
+                return HELP;
+            case "status":
+                return ChatServer.status();
+            case "sessions":
+                List<String> sessions = ChatServer.describeSessions();
+                sessions.add(sessions.size() + " sessions");
+                return String.join("\n", sessions);
+            case "disconnect":
+                if (parts.length < 2) {
+                    return "Use: disconnect user";
+                }
+                return ChatServer.disconnect(parts[1], null) ? "Disconnected " + parts[1] : parts[1] + " is not online";
+            case "kick":
+                if (parts.length < 2) {
+                    return "Use: kick user [reason]";
+                }
+                String reason = parts.length > 2 ? parts[2] : "Disconnected by an administrator.";
+                return ChatServer.disconnect(parts[1], reason) ? "Kicked " + parts[1] : parts[1] + " is not online";
+            case "limits":
+                return ChatServer.limits();
+            case "limit":
+                try {
+                    if (parts.length == 3 && ChatServer.setLimit(parts[1], Integer.parseInt(parts[2]))) {
+                        EventLog.info("limit-changed", "name", parts[1], "value", parts[2]);
+                        return ChatServer.limits();
+                    }
+                } catch (NumberFormatException e) {
+                    // Reported below
+                }
+                return "Use: limit maxConnections|maxPendingAuth|maxPerIp|acceptRate value, with a value of at least 1";
+            case "level":
+                if (parts.length > 1) {
+                    EventLog.Level level = EventLog.parse(parts[1], null);
+                    if (level == null) {
+                        return "Use: level debug|info|warn|error";
+                    }
+                    EventLog.setLevel(level);
+                }
+                return "level=" + EventLog.level();
+            case "threads":
+                return threads(parts.length > 1 && parts[1].equals("all"));
+            default:
+                return "Unknown command " + parts[0] + ", type help for commands";
+        }
+    }
+
+    // Deadlocks first, then threads ordered by the time they spent blocked on monitors, each with the lock it waits
+    // for, its owner, and its stack with the locks held; without all, runnable threads that hold no lock are left out
+    private static String threads(boolean all) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        StringBuilder report = new StringBuilder();
+        if (threads.isThreadContentionMonitoringSupported() && !threads.isThreadContentionMonitoringEnabled()) {
+            threads.setThreadContentionMonitoringEnabled(true); // Only paid for once someone looks
+            report.append("Contention monitoring enabled now, blocked and waited times count from here\n");
+        }
+        long[] deadlocked = threads.findDeadlockedThreads();
+        if (deadlocked != null) {
+            report.append("DEADLOCK between threads ").append(Arrays.toString(deadlocked)).append('\n');
+        }
+        ThreadInfo[] infos = threads.dumpAllThreads(threads.isObjectMonitorUsageSupported(), threads.isSynchronizerUsageSupported(), STACK_DEPTH);
+        Arrays.sort(infos, Comparator.comparingLong(ThreadInfo::getBlockedTime).reversed()
+                .thenComparing(Comparator.comparingLong(ThreadInfo::getBlockedCount).reversed()));
+        int shown = 0;
+        for (ThreadInfo info : infos) {
+            boolean interesting = info.getThreadState() == Thread.State.BLOCKED || info.getLockOwnerName() != null
+                    || info.getLockedMonitors().length > 0 || info.getLockedSynchronizers().length > 0;
+            if (!all && !interesting) {
+                continue;
+            }
+            shown++;
+            report.append('"').append(info.getThreadName()).append("\" id=").append(info.getThreadId())
+                    .append(' ').append(info.getThreadState())
+                    .append(" blocked=").append(info.getBlockedCount()).append('/').append(info.getBlockedTime()).append("ms")
+                    .append(" waited=").append(info.getWaitedCount()).append('/').append(info.getWaitedTime()).append("ms\n");
+            if (info.getLockInfo() != null) {
+                report.append("    on ").append(info.getLockInfo());
+                if (info.getLockOwnerName() != null) {
+                    report.append(" owned by \"").append(info.getLockOwnerName()).append("\" id=").append(info.getLockOwnerId());
+                }
+                report.append('\n');
+            }
+            StackTraceElement[] stack = info.getStackTrace();
+            for (int depth = 0; depth < stack.length; depth++) {
+                report.append("    at ").append(stack[depth]).append('\n');
+                for (MonitorInfo monitor : info.getLockedMonitors()) {
+                    if (monitor.getLockedStackDepth() == depth) {
+                        report.append("      - locked ").append(monitor).append('\n');
+                    }
+                }
+            }
+            for (LockInfo lock : info.getLockedSynchronizers()) {
+                report.append("    holds ").append(lock).append('\n');
+            }
+        }
+        return report.append(shown).append(" of ").append(infos.length).append(" threads").toString();
+    }
+}
@@ -0,0 +1,151 @@
+package server;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Decides in the accept loop whether a new connection gets a handler thread; excess connections get "BUSY <retryAfterMs>" and are closed
+class AdmissionController {
+    private static final double MIN_FREE_HEAP = 0.05; // Share of the heap that must be free to take another connection
+
+    // Limits may be changed at runtime through setLimit; the accept thread picks up new values on its next admit
+    private volatile int maxConnections = Integer.getInteger("chat.maxConnections", 10_000); // Open connections, authenticated or not
+    private volatile int maxPendingAuth = Integer.getInteger("chat.maxPendingAuth", 256); // Connections that have not logged in yet
+    private volatile int maxPerAddress = Integer.getInteger("chat.maxPerIp", 50); // Open connections from one address
+    private volatile double acceptRate = Integer.getInteger("chat.acceptRate", 200); // New connections per second, also the burst size
+
+    private final AtomicInteger connections = new AtomicInteger(); // Open connections
+    private final AtomicInteger pendingAuth = new AtomicInteger(); // Connections still authenticating
+    private final Map<InetAddress, Integer> perAddress = new HashMap<>(); // Open connections per remote address
+    private double tokens = acceptRate; // Accept budget, only touched by the accept thread
+    private long refilledAt = System.nanoTime(); // When the budget was last refilled
+
+    // Rejections by reason, for the metrics report
+    final LongAdder rejectedConnections = new LongAdder();
+    final LongAdder rejectedAuth = new LongAdder();
+    final LongAdder rejectedAddress = new LongAdder();
+    final LongAdder rejectedRate = new LongAdder();
+    final LongAdder rejectedMemory = new LongAdder();
+
+    // Admit a connection from the accept thread; returns 0 if admitted, otherwise how long the client should wait
+    long admit(InetAddress address) {
+        long now = System.nanoTime();
+        double acceptRate = this.acceptRate;
+        tokens = Math.min(acceptRate, tokens + (now - refilledAt) / 1e9 * acceptRate);
+        refilledAt = now;
+        if (tokens < 1) {
+            rejectedRate.increment();
+            return (long) Math.ceil((1 - tokens) / acceptRate * 1000); // Time until the next token
+        }
+        if (connections.get() >= maxConnections) {
+            rejectedConnections.increment();
+            return jitter(1000, 5000); // Spread the retries of a full server
+        }
+        if (pendingAuth.get() >= maxPendingAuth) {
+            rejectedAuth.increment();
+            return jitter(500, 2000);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (free < runtime.maxMemory() * MIN_FREE_HEAP) {
+            rejectedMemory.increment();
+            return jitter(2000, 10000);
+        }
+        synchronized (perAddress) {
+            int open = perAddress.getOrDefault(address, 0);
+            if (open >= maxPerAddress) {
+                rejectedAddress.increment();
+                return jitter(2000, 8000); // Connections from one address often retry together, after a NAT or proxy restart
+            }
+            perAddress.put(address, open + 1);
+        }
+        tokens--;
+        connections.incrementAndGet();
+        pendingAuth.incrementAndGet();
+        return 0;
+    }
+
+    // An admitted connection finished logging in
+    void authenticated() {
+        pendingAuth.decrementAndGet();
+    }
+
+    // An admitted connection was closed
+    void released(InetAddress address, boolean authenticated) {
+        if (!authenticated) {
+            pendingAuth.decrementAndGet();
+        }
+        connections.decrementAndGet();
+        synchronized (perAddress) {
+            perAddress.computeIfPresent(address, (key, open) -> open > 1 ? open - 1 : null);
+        }
+    }
+
+    // Turn a connection away cheaply; TLS clients cannot read a plain hint, so they are just closed
+    void reject(Socket socket, long retryAfterMs) {
+        try (Socket closing = socket) {
+            if (!(closing instanceof SSLSocket)) {
+                OutputStream out = closing.getOutputStream(); // A few bytes into an empty send buffer, this does not block
+                out.write(("BUSY " + retryAfterMs + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client is gone already
+        }
+    }
+
+    // Change a limit by the name of its property without the "chat." prefix; returns false for an unknown name or a value below 1
+    boolean setLimit(String name, int value) {
+        if (value < 1) {
+            return false;
+        }
+        switch (name) {
+            case "maxConnections":
+                maxConnections = value;
+                return true;
+            case "maxPendingAuth":
+                maxPendingAuth = value;
+                return true;
+            case "maxPerIp":
+                maxPerAddress = value;
+                return true;
+            case "acceptRate":
+                acceptRate = value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Current limits, named as setLimit takes them
+    String limits() {
+        return "maxConnections=" + maxConnections + " maxPendingAuth=" + maxPendingAuth + " maxPerIp=" + maxPerAddress
+                + " acceptRate=" + (int) acceptRate;
+    }
+
+    // Current load and rejection counts
+    String report() {
+        return "connections=" + connections.get() + "/" + maxConnections
+                + " authenticating=" + pendingAuth.get() + "/" + maxPendingAuth
+                + " rejected: connections=" + rejectedConnections.sum() + " auth=" + rejectedAuth.sum()
+                + " ip=" + rejectedAddress.sum() + " rate=" + rejectedRate.sum() + " memory=" + rejectedMemory.sum();
+    }
+
+    // Total rejections, to tell whether the report changed
+    long rejections() {
+        return rejectedConnections.sum() + rejectedAuth.sum() + rejectedAddress.sum() + rejectedRate.sum() + rejectedMemory.sum();
+    }
+
+    // Random delay in a range, so rejected clients do not come back together
+    private static long jitter(long min, long max) {
+        return ThreadLocalRandom.current().nextLong(min, max);
+    }
+}
@@ -0,0 +1,152 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// Content-addressed store of uploaded files: each distinct file is kept once on disk, keyed by its SHA-256
+class AttachmentStore {
+    private static final long MAX_BYTES = Long.getLong("chat.attachments.max", 1024L * 1024 * 1024); // Disk budget for blobs
+    static final long PIN_MS = 24L * 60 * 60 * 1000; // How long a blob sent privately is protected from eviction
+
+    private final File directory; // Directory holding the blobs and their checksum files
+    private final Map<String, Blob> blobs = new HashMap<>(); // Blobs by hash
+    private long totalBytes; // Size of all stored blobs
+
+    // One stored file
+    static class Blob {
+        final String hash; // Hex SHA-256 of the content
+        final long size; // Content size in bytes
+        final int[] checksums; // CRC32 of each transfer chunk, sent along with the data
+        int references; // Chat history entries pointing at this blob
+        long pinnedUntil; // Not evicted before this time even without references
+        long lastAccess; // Last upload or download, for least recently used eviction
+
+        Blob(String hash, long size, int[] checksums, long lastAccess) {
+            this.hash = hash;
+            this.size = size;
+            this.checksums = checksums;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    AttachmentStore(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            EventLog.warn("mkdir-failed", "dir", directory.getAbsolutePath());
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".crc"));
+        for (File checksumFile : files != null ? files : new File[0]) { // Pick up blobs stored by earlier runs
+            String hash = checksumFile.getName().substring(0, checksumFile.getName().length() - 4);
+            File data = new File(directory, hash);
+            try {
+                Blob blob = new Blob(hash, data.length(), readChecksums(checksumFile), data.lastModified());
+                if (data.exists()) {
+                    blobs.put(hash, blob);
+                    totalBytes += blob.size;
+                }
+            } catch (IOException e) {
+                EventLog.error("attachment-scan-failed", e, "file", checksumFile); // Skip blobs whose checksums cannot be read
+            }
+        }
+    }
+
+    // Add a completely received file, or drop it if the same content is already stored
+    synchronized Blob add(String hash, File data, int[] checksums) throws IOException {
+        Blob blob = blobs.get(hash);
+        if (blob != null) {
+            Files.deleteIfExists(data.toPath()); // Same content uploaded again, keep the stored copy
+        } else {
+            long size = data.length();
+            writeChecksums(new File(directory, hash + ".crc"), checksums);
+            Files.move(data.toPath(), file(hash).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            blob = new Blob(hash, size, checksums, 0);
+            blobs.put(hash, blob);
+            totalBytes += blob.size;
+        }
+        blob.lastAccess = System.currentTimeMillis();
+        evict();
+        return blob;
+    }
+
+    // Look up a blob for download
+    synchronized Blob get(String hash) {
+        Blob blob = blobs.get(hash);
+        if (blob != null) {
+            blob.lastAccess = System.currentTimeMillis();
+        }
+        return blob;
+    }
+
+    // A history entry now refers to the blob
+    synchronized void retain(String hash) {
+        Blob blob = blobs.get(hash);
+        if (blob != null) {
+            blob.references++;
+        }
+    }
+
+    // A history entry referring to the blob was dropped
+    synchronized void release(String hash) {
+        Blob blob = blobs.get(hash);
+        if (blob != null && blob.references > 0) {
+            blob.references--;
+            evict();
+        }
+    }
+
+    // Keep a blob around for a while even without history references
+    synchronized void pin(String hash, long millis) {
+        Blob blob = blobs.get(hash);
+        if (blob != null) {
+            blob.pinnedUntil = Math.max(blob.pinnedUntil, System.currentTimeMillis() + millis);
+        }
+    }
+
+    // File holding a blob's content
+    File file(String hash) {
+        return new File(directory, hash);
+    }
+
+    // Remove unreferenced blobs, least recently used first, until the store fits its budget
+    private void evict() {
+        long now = System.currentTimeMillis();
+        while (totalBytes > MAX_BYTES) {
+            Blob oldest = null;
+            for (Blob blob : blobs.values()) {
+                if (blob.references == 0 && blob.pinnedUntil < now && (oldest == null || blob.lastAccess < oldest.lastAccess)) {
+                    oldest = blob;
+                }
+            }
+            if (oldest == null) {
+                return; // Everything left is still referenced
+            }
+            blobs.remove(oldest.hash);
+            totalBytes -= oldest.size;
+            file(oldest.hash).delete();
+            new File(directory, oldest.hash + ".crc").delete();
+        }
+    }
+
+    // Write the chunk checksums next to a blob
+    private static void writeChecksums(File path, int[] checksums) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(checksums.length * 4);
+        for (int checksum : checksums) {
+            buffer.putInt(checksum);
+        }
+        Files.write(path.toPath(), buffer.array());
+    }
+
+    // Read the chunk checksums stored next to a blob
+    private static int[] readChecksums(File path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path.toPath()));
+        int[] checksums = new int[buffer.remaining() / 4];
+        for (int i = 0; i < checksums.length; i++) {
+            checksums[i] = buffer.getInt();
+        }
+        return checksums;
+    }
+}
@@ -0,0 +1,88 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shared byte buffers for socket reads and writes, in a few size classes matched to chat traffic
+// A connection borrows a buffer only while it is reading or writing, so idle connections hold none
+final class BufferPool {
+    private static final int[] SIZES = {2 * 1024, 8 * 1024, LineReader.MAX_LINE}; // Ordinary lines, write batches, longest line
+    private static final int[] LIMITS = {
+            Integer.getInteger("chat.pool.small", 4096), // Buffers kept per class; more are garbage collected after use
+            Integer.getInteger("chat.pool.medium", 1024),
+            Integer.getInteger("chat.pool.large", 64)};
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Generic arrays can only be created raw; every slot is filled with a typed deque below
+    private static final ArrayDeque<byte[]>[] free = new ArrayDeque[SIZES.length]; // Idle buffers per class, each guarded by itself
+
+    private static final LongAdder borrowed = new LongAdder(); // Buffers handed out
+    private static final LongAdder allocated = new LongAdder(); // Borrows that had to allocate
+
+    static {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    // Borrow a buffer of at least the given size; it must be given back with release
+    static byte[] borrow(int size) {
+        int sizeClass = sizeClass(size);
+        borrowed.increment();
+        if (sizeClass < 0) {
+            allocated.increment();
+            return new byte[size]; // Larger than any class, never pooled
+        }
+        byte[] buffer;
+        synchronized (free[sizeClass]) {
+            buffer = free[sizeClass].poll();
+        }
+        if (buffer == null) {
+            allocated.increment();
+            buffer = new byte[SIZES[sizeClass]];
+        }
+        return buffer;
+    }
+
+    // Give a buffer back; buffers not made by the pool are dropped
+    static void release(byte[] buffer) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (buffer.length == SIZES[i]) {
+                synchronized (free[i]) {
+                    if (free[i].size() < LIMITS[i]) {
+                        free[i].push(buffer); // Most recently used first, it is likely still in cache
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    // Smallest class that fits the size, -1 if none does
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Borrow count, allocation count and idle buffers per class
+    static String report() {
+        StringBuilder report = new StringBuilder("borrowed=" + borrowed.sum() + " allocated=" + allocated.sum() + " idle=");
+        for (int i = 0; i < SIZES.length; i++) {
+            synchronized (free[i]) {
+                report.append(i == 0 ? "" : "/").append(free[i].size());
+            }
+        }
+        return report.toString();
+    }
+
+    // Number of borrows so far, to tell whether the report changed
+    static long borrows() {
+        return borrowed.sum();
+    }
+}
@@ -8,213 +8,820 @@ package server;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
     private static final int PORT = 12345; // Port number for the server to listen on
-    private static final int HISTORY_LIMIT = 50; // Limit for message history
-    private static Map<String, ClientHandler> clientHandlers = new HashMap<>(); // Track clients by username
-    private static List<String> messageHistory = new ArrayList<>(); // List to store chat message history
-    private static final String USERS_FILE = "src/server/users.txt"; // File path for storing user credentials
+    private static final int HISTORY_LIMIT = Integer.getInteger("chat.history.limit", 50); // Limit for message history
+    private static final int HISTORY_PAGE = 100; // History messages copied and queued at a time for a joining client
+    private static final long TYPING_DEBOUNCE_MS = 2000; // Repeated typing events within this window are dropped
+    private static final long RECEIPT_FLUSH_MS = 1000; // Interval at which merged receipts are sent to senders
+    private static final long REPORT_MS = Long.getLong("chat.reportMs", 60_000); // Interval of the filter and compression report
+    private static final ShardedSessions<ClientHandler> sessions = new ShardedSessions<>(
+            Integer.getInteger("chat.shards", Runtime.getRuntime().availableProcessors())); // Online clients, partitioned by username
+    private static MessageStore messageHistory; // Room history; its lock also orders broadcasts. Opened once the previous server let go
+    private static UserStore users; // Registered users
+    private static PrivateHistoryStore privateHistory; // Private messages and their seqs
+    private static final int PRIVATE_HISTORY_PAGE = 200; // Most private messages returned by one /phistory request
+    private static final ReceiptTracker receipts = new ReceiptTracker(); // Delivery and read acknowledgements
+    private static final int AUTH_TIMEOUT_MS = Integer.getInteger("chat.auth.timeoutMs", 10_000); // Time a connection has to log in
+    private static final int AUTH_ATTEMPTS = Integer.getInteger("chat.auth.attempts", 3); // Failed logins allowed per connection
+    private static final int AUTH_THREADS = Integer.getInteger("chat.auth.threads", 16); // Threads reading and checking logins
+    // The queue needs no capacity of its own: admission lets in at most maxPendingAuth unauthenticated connections, at
+    // whatever value the limit has now, so a limit raised from the console is not undercut by a queue sized at startup
+    private static final ThreadPoolExecutor authenticators = new ThreadPoolExecutor(AUTH_THREADS, AUTH_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "auth");
+                thread.setDaemon(true);
+                return thread;
+            }); // Logins run here, apart from established sessions
+    private static final LoginThrottle userFailures = new LoginThrottle(3); // Backoff per username and address, so guessing from elsewhere never locks the owner out
+    private static final LoginThrottle addressFailures = new LoginThrottle(10); // Backoff per remote address, lenient for shared addresses
+    private static final AdmissionController admission = new AdmissionController(); // Connection limits applied in the accept loop
+    private static final MessagePipeline moderation = ModerationStages.createDefault(); // Filters applied to public messages
+    private static long reportedFiltered; // Messages filtered at the time of the last report
+    private static long reportedFrames; // Compressed frames at the time of the last report
+    private static long reportedRejections; // Rejected connections at the time of the last report
+    private static long reportedBorrows; // Buffer borrows at the time of the last report
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chat-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    }); // Runs periodic server tasks
+    private static final long RECONNECT_MIN_MS = 500; // Earliest reconnect suggested to a drained client
+    private static final long RECONNECT_SPREAD_MS = Long.getLong("chat.drain.spreadMs", 10_000); // Window reconnects are spread over
+    private static final long ACCEPT_BACKOFF_MS = 100; // Pause after a failed accept before trying again
+    private static final long DRAIN_TIMEOUT_MS = Long.getLong("chat.drain.timeoutMs", 5_000); // Time allowed to flush client queues
+    private static final FileTransferServer fileTransferServer = new FileTransferServer(); // Side channel for file transfers
+    private static final AdminConsole adminConsole = new AdminConsole(); // Local operator commands
+    private static ServerSocket listener; // Listening socket, closed when the server drains
+    private static volatile boolean draining; // Set once shutdown has begun
+    private static final String QUARANTINE_FILE = "src/server/quarantine.txt"; // Messages held back by the filters
 
     public static void main(String[] args) {
-        System.out.println("Chat server started...");
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) { // Create server socket to listen for connections
-            while (true) {
-                Socket clientSocket = serverSocket.accept(); // Accept a new client connection
-                ClientHandler clientHandler = new ClientHandler(clientSocket); // Create handler for new client
-                clientHandler.start(); // Start a new thread for handling client
+        EventLog.info("server-started", "port", PORT, "shards", sessions.shards());
+        ServerSocket serverSocket;
+        try {
+            serverSocket = TlsSupport.open(PORT); // Create server socket to listen for connections, TLS if chat.tls is set
+        } catch (IOException e) {
+            EventLog.error("listen-failed", e, "port", PORT); // Print error if the port cannot be used
+            EventLog.close();
+            return;
+        }
+        if (Boolean.getBoolean("chat.handoff")) {
+            Handoff.takeOver(); // Let the previous server drain; new clients wait in our backlog meanwhile
+        }
+        openStores(); // Only after the takeover, the previous server writes to them until it has drained
+        Handoff.writePidFile();
+        listener = serverSocket;
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::drain, "drain")); // SIGTERM drains instead of dropping everyone
+        fileTransferServer.start(); // Start the side channel for file transfers
+        adminConsole.start();
+        scheduler.scheduleAtFixedRate(ChatServer::flushReceipts, RECEIPT_FLUSH_MS, RECEIPT_FLUSH_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(() -> {
+            userFailures.purge();
+            addressFailures.purge();
+        }, 1, 1, TimeUnit.MINUTES);
+        scheduler.scheduleAtFixedRate(ChatServer::reportMetrics, REPORT_MS, REPORT_MS, TimeUnit.MILLISECONDS);
+        try (ServerSocket server = serverSocket) { // Closed here too if the loop ends without a drain
+            while (!draining && !server.isClosed()) {
+                try {
+                    acceptOne(server);
+                } catch (IOException | RuntimeException e) { // Out of file descriptors, a reset before accept: keep serving
+                    if (draining || server.isClosed()) {
+                        break;
+                    }
+                    EventLog.error("accept-failed", e);
+                    try {
+                        Thread.sleep(ACCEPT_BACKOFF_MS); // Give sessions time to release what ran out instead of spinning
+                    } catch (InterruptedException interrupted) {
+                        break;
+                    }
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace(); // Print error if server fails
+            EventLog.error("listener-close-failed", e);
+        }
+    }
+
+    // Accept one connection and hand it to admission, then to the TLS handshake and login pools
+    private static void acceptOne(ServerSocket serverSocket) throws IOException {
+        Socket clientSocket = serverSocket.accept(); // Accept a new client connection
+        long retryAfter = admission.admit(clientSocket.getInetAddress());
+        if (retryAfter > 0) { // Overloaded: shed the connection before it costs a thread
+            admission.reject(clientSocket, retryAfter);
+            return;
         }
+        TlsSupport.accept(clientSocket, ChatServer::authenticate, // Log in on the authentication pool once the handshake is done
+                () -> admission.released(clientSocket.getInetAddress(), false));
+    }
+
+    // Queue a new connection for login; it is only refused once the pool is shut down, and is then turned away like any other overload
+    private static void authenticate(Socket socket) {
+        ClientHandler handler = new ClientHandler(socket);
+        try {
+            authenticators.execute(handler::login);
+        } catch (RejectedExecutionException e) {
+            admission.reject(socket, 1000);
+            admission.released(socket.getInetAddress(), false);
+        }
+    }
+
+    // Orderly shutdown: stop accepting, send clients a staggered reconnect hint, flush their queues and save the history
+    private static void drain() {
+        draining = true;
+        EventLog.info("drain-started", "clients", sessions.size());
+        try {
+            listener.close(); // New clients go to the next server, or retry
+        } catch (IOException e) {
+            EventLog.error("listener-close-failed", e); // Print error if the socket cannot be closed
+        }
+        fileTransferServer.stopListening();
+        adminConsole.stopListening(); // The next server binds the admin port
+        authenticators.shutdown(); // Logins in progress finish, a successful one is turned away instead of starting a session
+        flushReceipts(); // Senders get the receipts collected so far
+
+        List<ClientHandler> handlers = sessions.handlers();
+        Collections.shuffle(handlers); // Spread reconnects evenly over the window instead of by login order
+        for (int i = 0; i < handlers.size(); i++) {
+            long delay = RECONNECT_MIN_MS + RECONNECT_SPREAD_MS * i / handlers.size();
+            handlers.get(i).sendMessage("/reconnect " + delay);
+        }
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        for (ClientHandler handler : handlers) {
+            try {
+                if (!handler.outbound.awaitFlushed(Math.max(1, deadline - System.currentTimeMillis()))) {
+                    EventLog.warn("drain-flush-timeout", "user", handler.username);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            handler.disconnect();
+        }
+        stopSessions(handlers); // Nothing may write to the stores once they are closed
+        messageHistory.close(); // Saves or flushes the room history for the next server
+        privateHistory.close();
+        users.close();
+        Handoff.removePidFile();
+        EventLog.info("drain-finished", "clients", handlers.size());
+        EventLog.close(); // Last event, the process exits after this hook
+    }
+
+    // Wait for the threads that write to the stores: logins still running, the disconnected session threads, and
+    // the shard threads with the broadcasts those sessions posted
+    private static void stopSessions(List<ClientHandler> handlers) {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        try {
+            if (!authenticators.awaitTermination(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                EventLog.warn("drain-auth-timeout", "pending", authenticators.getActiveCount());
+            }
+            for (ClientHandler handler : sessions.handlers()) { // Sessions that started while the drain began
+                if (!handlers.contains(handler)) {
+                    handler.disconnect();
+                    handlers.add(handler);
+                }
+            }
+            for (ClientHandler handler : handlers) {
+                handler.join(Math.max(1, deadline - System.currentTimeMillis()));
+                if (handler.isAlive()) {
+                    EventLog.warn("drain-session-timeout", "user", handler.username);
+                }
+            }
+            if (!sessions.shutdown(Math.max(1, deadline - System.currentTimeMillis()))) {
+                EventLog.warn("drain-shard-timeout", "shards", sessions.shards());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Open the user and message stores chosen with chat.store
+    private static void openStores() {
+        users = UserStore.open();
+        messageHistory = MessageStore.open(HISTORY_LIMIT, entry -> releaseAttachment(entry.text));
+        privateHistory = new PrivateHistoryStore(new File("src/server/private"));
+        for (MessageStore.Entry entry : messageHistory.page(0, Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            if (entry.text.startsWith("/file shared ")) {
+                FileTransferServer.attachments.retain(entry.text.split(" ", 4)[2]); // The entry holds the blob again
+            }
+        }
+        EventLog.info("history-loaded", "messages", messageHistory.size());
     }
 
     // Broadcast a message to all clients
     public static void broadcastMessage(String message, ClientHandler sender) {
+        long seq;
+        CompletableFuture<?> durable;
         synchronized (messageHistory) { // Synchronize access to message history
-            if (messageHistory.size() >= HISTORY_LIMIT) {
-                messageHistory.remove(0); // Remove oldest message if limit is reached
+            seq = messageHistory.append(message); // Add new message to history, evicting the oldest beyond the limit
+            durable = messageHistory.durable();
+            Map<String, String> frames = new ConcurrentHashMap<>(); // Each distinct line is compressed once for all recipients
+            sessions.broadcast(clientHandler -> { // Posted under the lock, so every shard delivers room messages in seq order
+                if (clientHandler != sender && seq > clientHandler.historyUpTo) { // Not to the sender, nor twice to a client replaying it
+                    clientHandler.sendSequenced(seq, message, frames, OutboundQueue.Lane.LIVE); // Send message to other clients
+                }
+            });
+        }
+        if (sender != null && sender.username != null) {
+            receipts.roomMessageSent(sender.username, seq);
+            if (sender.supports("receipts")) { // Lets the sender match receipts to its message, once the message is stored
+                durable.whenComplete((offset, error) -> {
+                    if (error == null) {
+                        sender.sendMessage("/sent * " + seq);
+                    } else { // Delivered live but not stored, so no ack; the write failure is logged by the store
+                        sender.sendMessage("Message " + seq + " could not be stored and may be missing from history.");
+                    }
+                });
             }
-            messageHistory.add(message); // Add new message to history
         }
-        synchronized (clientHandlers) { // Synchronize access to client handlers
-            for (ClientHandler clientHandler : clientHandlers.values()) {
-                if (clientHandler != sender) { // Do not send the message to the sender
-                    clientHandler.sendMessage(message); // Send message to other clients
-                }
+    }
+
+    // Run a public message through the moderation pipeline and broadcast what survives it
+    private static void publishMessage(String message, ClientHandler sender) {
+        MessagePipeline.Message filtered = new MessagePipeline.Message(sender.username, message);
+        switch (moderation.process(filtered)) {
+            case REJECT:
+                sender.sendMessage("Message not sent: " + filtered.reason); // Tell the sender why
+                break;
+            case QUARANTINE:
+                quarantine(filtered);
+                sender.sendMessage(filtered.reason);
+                break;
+            default:
+                broadcastMessage(sender.publicPrefix.concat(filtered.text), sender); // Broadcast the possibly rewritten message
+                break;
+        }
+    }
+
+    // Keep a held-back message for a moderator to review
+    private static synchronized void quarantine(MessagePipeline.Message message) {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(QUARANTINE_FILE, true))) {
+            writer.println(System.currentTimeMillis() + " " + message.sender + ": " + message.text);
+        } catch (IOException e) {
+            EventLog.error("quarantine-failed", e, "file", QUARANTINE_FILE); // Print error if writing to file fails
+        }
+    }
+
+    // Print filter timings, compression figures, admission counts and buffer pool usage when they changed since the last report
+    private static void reportMetrics() {
+        long processed = moderation.processed();
+        if (processed != reportedFiltered) {
+            reportedFiltered = processed;
+            for (MessagePipeline.StageMetrics stats : moderation.metrics()) {
+                EventLog.info("filter-stage", "stats", stats);
             }
         }
+        long compressed = Compression.activity();
+        if (compressed != reportedFrames) {
+            reportedFrames = compressed;
+            EventLog.info("compression", "stats", Compression.report());
+        }
+        long rejections = admission.rejections();
+        if (rejections != reportedRejections) {
+            reportedRejections = rejections;
+            EventLog.info("admission", "stats", admission.report());
+        }
+        long borrows = BufferPool.borrows();
+        if (borrows != reportedBorrows) {
+            reportedBorrows = borrows;
+            EventLog.info("buffers", "stats", BufferPool.report());
+        }
+    }
+
+    // Drop the attachment reference held by a history entry that is no longer kept
+    private static void releaseAttachment(String message) {
+        if (message.startsWith("/file shared ")) { // /file shared hash sender size token name
+            FileTransferServer.attachments.release(message.split(" ", 4)[2]);
+        }
     }
 
     // Send a private message to a specific client
     public static void sendPrivateMessage(String recipient, String message, ClientHandler sender) {
-        ClientHandler recipientHandler = clientHandlers.get(recipient); // Get the recipient's client handler
+        ClientHandler recipientHandler = sessions.get(recipient); // Get the recipient's client handler
         if (recipientHandler != null) { // Check if recipient is online
-            recipientHandler.sendMessage("Private from " + sender.username + ": " + message); // Send private message to recipient
-            sender.sendMessage("Private to " + recipient + ": " + message); // Send confirmation to the sender
+            long seq = privateHistory.append(sender.username, recipientHandler.username, sender.username, message); // Stored before delivery
+            recipientHandler.sendSequenced(seq, sender.privateFromPrefix.concat(message), null, OutboundQueue.Lane.PRIVATE); // Send private message to recipient
+            sender.sendSequenced(seq, recipientHandler.privateToPrefix.concat(message), null, OutboundQueue.Lane.PRIVATE); // Send confirmation to the sender
         } else {
             sender.sendMessage("User " + recipient + " is not online."); // Inform sender that recipient is not online
         }
     }
 
-    // Broadcast the list of online users to all clients
-    public static void broadcastUserList() {
-        StringBuilder userList = new StringBuilder("/users "); // Command to indicate user list update
-        synchronized (clientHandlers) { // Synchronize access to client handlers
-            for (String username : clientHandlers.keySet()) {
-                userList.append(username).append(" "); // Append each username to the list
+    // Register a file offered by a client and hand it the upload token
+    private static void offerFile(String[] parts, ClientHandler sender) {
+        String ref = parts[2];
+        String recipient = parts[3];
+        long size;
+        try {
+            size = Long.parseLong(parts[4]);
+        } catch (NumberFormatException e) {
+            sender.sendMessage("/file error " + ref + " Invalid file size.");
+            return;
+        }
+        ClientHandler recipientHandler = sessions.get(recipient); // Get the recipient's client handler
+        if (recipientHandler == null && !recipient.equals("*")) {
+            sender.sendMessage("/file error " + ref + " User " + recipient + " is not online.");
+        } else if (size < 0) {
+            sender.sendMessage("/file error " + ref + " Invalid file size.");
+        } else if (size > FileTransferServer.MAX_FILE_SIZE) { // Also bounds the checksum table allocated per offer
+            sender.sendMessage("/file error " + ref + " File is larger than " + FileTransferServer.MAX_FILE_SIZE + " bytes.");
+        } else if (recipientHandler != null && !recipientHandler.supports("file")) {
+            sender.sendMessage("/file error " + ref + " User " + recipient + " cannot receive files.");
+        } else { // To the recipient, or shared with the whole room for "*"
+            FileTransferServer.Transfer transfer = FileTransferServer.createTransfer(sender.username, recipient, parts[5], size);
+            if (transfer == null) {
+                sender.sendMessage("/file error " + ref + " Too many unfinished transfers, wait for one to complete.");
+            } else {
+                sender.sendMessage("/file upload " + ref + " " + transfer.id + " " + transfer.uploadToken);
             }
         }
-        for (ClientHandler client : clientHandlers.values()) { // Send updated user list to all clients
-            client.sendMessage(userList.toString().trim());
+    }
+
+    // Tell the recipients that an uploaded file can be fetched; only a reference to the stored blob is sent
+    static void fileReady(FileTransferServer.Transfer transfer, AttachmentStore.Blob blob) {
+        ClientHandler recipientHandler = sessions.get(transfer.recipient);
+        ClientHandler senderHandler = sessions.get(transfer.sender);
+        String reference = blob.hash + " " + transfer.sender + " " + blob.size + " " + FileTransferServer.downloadToken(blob.hash) + " " + transfer.name;
+        if (transfer.recipient.equals("*")) {
+            FileTransferServer.attachments.retain(blob.hash); // Held for as long as the history entry is kept
+            broadcastMessage("/file shared " + reference, senderHandler);
+        } else if (recipientHandler != null) {
+            FileTransferServer.attachments.pin(blob.hash, AttachmentStore.PIN_MS); // Give the recipient time to fetch it
+            recipientHandler.sendMessage("/file ready " + reference);
+        }
+        if (senderHandler != null) {
+            senderHandler.sendMessage("/file sent " + transfer.recipient + " " + transfer.name);
         }
     }
 
-    // Validate user login credentials
-    private static boolean validateLogin(String username, String password) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(USERS_FILE))) { // Read credentials from file
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":"); // Split username and password
-                if (parts.length == 2 && parts[0].equals(username) && parts[1].equals(password)) { // Match credentials
-                    return true; // Return true if credentials match
+    // Relay a typing indicator to the private peer or the room; it is never stored and may be dropped
+    private static void relayTyping(String target, String state, ClientHandler sender) {
+        if (target.equals("*")) { // Typing in the room
+            String event = "/typing " + sender.username + " room " + state;
+            sessions.broadcast(clientHandler -> {
+                if (clientHandler != sender && clientHandler.supports("typing")) { // Only clients that can show it
+                    clientHandler.sendEphemeral(event);
                 }
+            });
+        } else {
+            ClientHandler recipientHandler = sessions.get(target);
+            if (recipientHandler != null && recipientHandler.supports("typing")) {
+                recipientHandler.sendEphemeral("/typing " + sender.username + " private " + state);
             }
-        } catch (IOException e) {
-            e.printStackTrace(); // Print error if reading file fails
         }
-        return false; // Return false if credentials do not match
     }
 
-    // Register a new user with additional debug output for troubleshooting
-    private static boolean registerUser(String username, String password) {
-        if (validateLogin(username, password)) { // Check if user already exists
-            System.out.println("Sign-up failed: User already exists with username " + username);
-            return false; // Return false if user exists
+    // Send the receipt updates merged since the last flush
+    private static void flushReceipts() {
+        for (ReceiptTracker.Update update : receipts.flush()) {
+            ClientHandler handler = sessions.get(update.recipient);
+            if (handler != null && handler.supports("receipts")) {
+                handler.sendEphemeral(update.line); // Cumulative, so a dropped update is repaired by the next one
+            }
         }
-        try {
-            File file = new File(USERS_FILE);
-            if (!file.exists()) { // Check if users file exists
-                if (file.createNewFile()) { // Create the file if it does not exist
-                    System.out.println("Created new users.txt file at " + file.getAbsolutePath());
-                } else {
-                    System.out.println("Failed to create users.txt file.");
-                    return false; // Return false if file creation fails
-                }
+    }
+
+    // Broadcast the list of online users to all clients
+    public static void broadcastUserList() {
+        Map<String, String> frames = new ConcurrentHashMap<>(); // Compressed once for every client that accepts it
+        synchronized (sessions) { // Lists reach every shard in the order the online set changed
+            String line = sessions.userList();
+            sessions.broadcast(client -> client.send(line, frames, OutboundQueue.Lane.CONTROL)); // Send updated user list to all clients
+        }
+    }
+
+    // One line per online session for the admin console: user, remote address, age, lines in and out, lines queued per
+    // lane and how long the writer has been stuck in a write; only the shard tables and each queue are locked, one at a time
+    static List<String> describeSessions() {
+        List<String> lines = new ArrayList<>();
+        long now = System.nanoTime();
+        for (ClientHandler handler : sessions.handlers()) {
+            int[] depths = handler.outbound.depths();
+            StringBuilder line = new StringBuilder(handler.username).append(' ').append(handler.socket.getRemoteSocketAddress())
+                    .append(" online=").append((now - handler.started) / 1_000_000_000).append('s')
+                    .append(" in=").append(handler.received).append(" out=").append(handler.outbound.written()).append(" queued=");
+            for (OutboundQueue.Lane lane : OutboundQueue.Lane.values()) {
+                line.append(lane.ordinal() == 0 ? "" : "/").append(depths[lane.ordinal()]);
             }
-            try (PrintWriter writer = new PrintWriter(new FileWriter(USERS_FILE, true))) { // Append new user to file
-                writer.println(username + ":" + password); // Write new user credentials
-                System.out.println("User " + username + " successfully registered.");
-                return true; // Return true if registration is successful
+            line.append(" writing=").append(handler.outbound.writingForMs()).append("ms caps=").append(String.join(",", handler.capabilities));
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    // Close a user's session; with a reason the client is told not to reconnect. Returns false if the user is not online
+    static boolean disconnect(String username, String reason) {
+        ClientHandler handler = sessions.get(username);
+        if (handler == null) {
+            return false;
+        }
+        handler.closing = true;
+        if (reason != null) {
+            handler.sendMessage("/kicked " + reason);
+            try {
+                handler.outbound.awaitFlushed(1000); // Give the line a chance, a stalled client is closed regardless
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (IOException e) {
-            e.printStackTrace(); // Print error if writing to file fails
         }
-        System.out.println("Sign-up failed due to an unknown error.");
-        return false; // Return false if an unknown error occurs
+        handler.disconnect(); // The session thread cleans up and updates the user list
+        EventLog.info("admin-disconnect", "user", username, "reason", reason);
+        return true;
+    }
+
+    // Server-wide figures for the admin console
+    static String status() {
+        return "online=" + sessions.size() + " shards=" + sessions.shards() + " history=" + messageHistory.size()
+                + " lastSeq=" + messageHistory.lastSeq() + " authQueue=" + authenticators.getQueue().size()
+                + "\nadmission: " + admission.report() + "\nwriters: " + OutboundQueue.report() + "\nbuffers: " + BufferPool.report()
+                + "\ncompression: " + Compression.report() + "\nlog: " + EventLog.report();
+    }
+
+    // Connection limits for the admin console
+    static String limits() {
+        return admission.limits();
+    }
+
+    static boolean setLimit(String name, int value) {
+        return admission.setLimit(name, value);
     }
 
     // Inner class to handle each client's connection
     private static class ClientHandler extends Thread {
         private Socket socket; // Client socket
-        private PrintWriter out; // Output stream to client
-        private BufferedReader in; // Input stream from client
+        private OutputStream out; // Output stream to client, written through pooled buffers
+        private LineReader in; // Input stream from client
         private String username; // Username of the connected client
+        private int sessionId = -1; // Index in its shard's session table once logged in
+        private volatile long historyUpTo = Long.MAX_VALUE; // Room messages up to this seq come from the history replay, not live
+        private String publicPrefix; // "name: ", built once for every room message this client sends
+        private String privateFromPrefix; // "Private from name: "
+        private String privateToPrefix; // "Private to name: "
+        private volatile Set<String> capabilities = Collections.emptySet(); // Protocol extensions the client understands
+        private final OutboundQueue outbound = new OutboundQueue(); // Lines waiting for the writer pool
+        private String lastTypingTarget = ""; // Target of the last typing event relayed for this client
+        private String lastTypingState; // State of that event
+        private long lastTypingAt; // When the last typing event was relayed
+        private final long started = System.nanoTime(); // When the connection was handed to the server, for login and session times
+        private volatile long received; // Lines read from the client, only updated by its session thread
+        private volatile boolean closing; // Set when the server closes the session on purpose, so the broken read is expected
 
         public ClientHandler(Socket socket) {
             this.socket = socket; // Initialize socket
         }
 
+        // Runs on the authentication pool; the session thread is only started once the client has logged in
+        private void login() {
+            try {
+                in = new LineReader(socket.getInputStream()); // Initialize input stream
+                out = socket.getOutputStream(); // Initialize output stream, written once per batch
+                if (authenticateUser() && !draining) { // Authenticate user (login/signup); no new sessions once draining
+                    socket.setSoTimeout(0); // Sessions may stay idle
+                    admission.authenticated(); // Frees an authentication slot
+                    setName("session-" + username); // Names the session in events and thread dumps
+                    start();
+                    return;
+                }
+            } catch (SocketTimeoutException e) {
+                EventLog.info("login-timeout", "remote", socket.getRemoteSocketAddress()); // Client never finished logging in
+            } catch (IOException e) {
+                EventLog.error("login-failed", e, "remote", socket.getRemoteSocketAddress()); // Print error if reading the login fails
+            }
+            if (in != null) {
+                in.release(); // Return the read buffer to the pool
+            }
+            disconnect(); // Close socket if authentication fails
+            admission.released(socket.getInetAddress(), false);
+        }
+
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream())); // Initialize input stream
-                out = new PrintWriter(socket.getOutputStream(), true); // Initialize output stream
-
-                if (!authenticateUser()) { // Authenticate user (login/signup)
-                    socket.close(); // Close socket if authentication fails
-                    return; // Stop execution if authentication fails
-                }
+                outbound.start(out, "writer-" + username); // From now on all output goes through the queue
 
-                synchronized (clientHandlers) {
-                    clientHandlers.put(username, this); // Add the authenticated user to the list of online clients
-                    broadcastUserList(); // Broadcast the updated list of online users
-                }
+                publicPrefix = username + ": "; // Published to other threads by its shard's table lock
+                privateFromPrefix = "Private from " + username + ": ";
+                privateToPrefix = "Private to " + username + ": ";
+                sessionId = sessions.register(username, this); // Add the authenticated user to the list of online clients
+                broadcastUserList(); // Broadcast the updated list of online users
 
                 sendHistory(); // Send chat history to the new user
-                String message;
-
-                while ((message = in.readLine()) != null) { // Continuously read messages from the client
-                    if (message.startsWith("/msg ")) { // Check if the message is a private message
-                        String[] parts = message.split(" ", 3);
-                        if (parts.length == 3) { // Validate private message format
-                            String recipient = parts[1];
-                            String privateMessage = parts[2];
-                            sendPrivateMessage(recipient, privateMessage, this); // Send private message
+
+                while (in.next()) { // Continuously read messages from the client, inspecting each line in place
+                    received++;
+                    if (in.startsWith("/msg ")) { // Check if the message is a private message
+                        int space = in.indexOf(' ', 5);
+                        if (space > 5 && space < in.length()) { // Validate private message format
+                            sendPrivateMessage(in.string(5, space), in.string(space + 1), this); // Send private message
                         } else {
                             sendMessage("Invalid private message format. Use: /msg recipient message"); // Inform about invalid format
                         }
+                    } else if (in.startsWith("/caps ")) { // Client announces the protocol extensions it supports
+                        capabilities = new HashSet<>(Arrays.asList(in.string(6).trim().split(" ")));
+                    } else if (in.startsWith("/ack ")) { // Cumulative acknowledgement: /ack conversation delivered read
+                        acknowledge();
+                    } else if (in.startsWith("/typing ")) { // Typing indicator: /typing target start|stop
+                        int space = in.indexOf(' ', 8);
+                        String state = in.equals(space + 1, in.length(), "start") ? "start" : in.equals(space + 1, in.length(), "stop") ? "stop" : null;
+                        if (space > 8 && state != null) {
+                            typing(in.equals(8, space, "*") ? "*" : in.string(8, space), state);
+                        }
+                    } else if (in.startsWith("/phistory ")) { // Stored private messages: /phistory peer count [beforeSeq]
+                        sendPrivateHistory(in.string(10).trim().split(" "));
+                    } else if (in.startsWith("/file offer ")) { // Client wants to send a file
+                        String[] parts = in.string(0).split(" ", 6);
+                        if (parts.length == 6) {
+                            offerFile(parts, this);
+                        } else {
+                            sendMessage("Invalid file offer. Use: /file offer ref recipient size name"); // Inform about invalid format
+                        }
                     } else { // Handle public message
-                        broadcastMessage(username + ": " + message, this); // Broadcast public message to all clients
+                        publishMessage(in.string(0), this); // Filter, then broadcast public message to all clients
                     }
                 }
             } catch (IOException e) {
-                e.printStackTrace(); // Print error if message handling fails
+                if (!draining && !closing) {
+                    EventLog.error("session-failed", e, "user", username); // Print error if message handling fails
+                }
             } finally {
+                admission.released(socket.getInetAddress(), true); // Sessions only run after a successful login
+                outbound.close(); // Stop the writer
+                in.release(); // Return the read buffer to the pool
                 try {
                     socket.close(); // Close client socket
                 } catch (IOException e) {
-                    e.printStackTrace(); // Print error if socket closing fails
+                    EventLog.error("close-failed", e, "user", username); // Print error if socket closing fails
                 }
-                synchronized (clientHandlers) {
-                    clientHandlers.remove(username); // Remove client from the list of online users
-                    broadcastUserList(); // Update user list when a client disconnects
+                if (sessions.unregister(username, sessionId, this)) { // Remove client from the list of online users
+                    receipts.forget(username);
+                    if (!draining) {
+                        broadcastUserList(); // Update user list when a client disconnects
+                    }
                 }
-                System.out.println("Client disconnected: " + username); // Log disconnection
+                EventLog.info("disconnect", "user", username, "remote", socket.getRemoteSocketAddress(), "sessionMs", (System.nanoTime() - started) / 1_000_000); // Log disconnection
             }
         }
 
         // Authenticate user with login/signup
         private boolean authenticateUser() throws IOException {
-            while (true) { // Loop until authentication succeeds or fails
-                String loginType = in.readLine(); // Read login type (LOGIN/SIGNUP)
-                String username = in.readLine(); // Read username
-                String password = in.readLine(); // Read password
-
-                if (loginType.equals("LOGIN")) { // Handle login request
-                    if (validateLogin(username, password)) { // Validate login credentials
-                        out.println("SUCCESS"); // Inform client of successful login
+            long deadline = System.currentTimeMillis() + AUTH_TIMEOUT_MS; // The whole login must finish by then
+            String address = "ip:" + socket.getInetAddress().getHostAddress();
+            for (int attempt = 0; attempt < AUTH_ATTEMPTS; ) { // Loop until authentication succeeds or the attempts run out
+                String loginType = readLine(deadline); // Read login type (LOGIN/SIGNUP)
+                if (loginType == null) {
+                    return false; // Client went away
+                }
+                if (loginType.startsWith("/caps ")) { // Extensions may be announced before logging in
+                    capabilities = new HashSet<>(Arrays.asList(loginType.substring(6).trim().split(" ")));
+                    continue;
+                }
+                String username = readLine(deadline); // Read username
+                String password = readLine(deadline); // Read password
+                if (username == null || password == null) {
+                    return false;
+                }
+                String account = username + "\0" + address; // Failures of this user from this address only
+                long wait = Math.max(userFailures.blockedFor(account), addressFailures.blockedFor(address));
+                if (wait > 0) { // Too many recent failures, the client may try again later
+                    reply("BUSY " + wait);
+                    return false;
+                }
+                attempt++;
+                if (!loginType.equals("LOGIN") && !loginType.equals("SIGNUP")) {
+                    reply("FAIL"); // Unknown request counts as a failed attempt
+                } else if (loginType.equals("LOGIN")) { // Handle login request
+                    if (users.validate(username, password)) { // Validate login credentials
+                        reply("SUCCESS"); // Inform client of successful login
+                        userFailures.succeeded(account);
                         this.username = username; // Set username
-                        System.out.println("User logged in: " + username); // Log successful login
+                        EventLog.info("login", "user", username, "remote", socket.getRemoteSocketAddress(), "ms", (System.nanoTime() - started) / 1_000_000); // Log successful login
                         return true; // Return true if login is successful
                     } else {
-                        out.println("FAIL"); // Inform client of failed login
+                        reply("FAIL"); // Inform client of failed login
                     }
                 } else if (loginType.equals("SIGNUP")) { // Handle signup request
-                    if (registerUser(username, password)) { // Register new user
-                        out.println("SUCCESS"); // Inform client of successful signup
+                    if (validUsername(username) && users.register(username, password)) { // Register new user
+                        reply("SUCCESS"); // Inform client of successful signup
                         this.username = username; // Set username
-                        System.out.println("User signed up: " + username); // Log successful signup
+                        EventLog.info("signup", "user", username, "remote", socket.getRemoteSocketAddress(), "ms", (System.nanoTime() - started) / 1_000_000); // Log successful signup
                         return true; // Return true if signup is successful
                     } else {
-                        out.println("FAIL"); // Inform client of failed signup
+                        reply("FAIL"); // Inform client of failed signup
                     }
                 }
+                EventLog.info("login-rejected", "user", username, "remote", socket.getRemoteSocketAddress(), "type", loginType);
+                userFailures.failed(account);
+                addressFailures.failed(address);
             }
+            return false; // Out of attempts
         }
 
-        // Send chat history to this client
+        // Whether a new account may take this name: "*" means the room in /ack, /typing and /file offer, and spaces,
+        // colons and control characters would split protocol lines or the users file
+        private static boolean validUsername(String username) {
+            if (username.isEmpty() || username.equals("*")) {
+                return false;
+            }
+            for (int i = 0; i < username.length(); i++) {
+                char c = username.charAt(i);
+                if (Character.isWhitespace(c) || Character.isISOControl(c) || c == ':') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Apply an acknowledgement from the current line, parsing the numbers in place
+        private void acknowledge() {
+            int first = in.indexOf(' ', 5);
+            int second = in.indexOf(' ', first + 1);
+            int third = in.indexOf(' ', second + 1);
+            try {
+                if (third != in.length() || second == in.length()) {
+                    throw new NumberFormatException("Expected three fields");
+                }
+                long delivered = in.parseLong(first + 1, second);
+                long read = in.parseLong(second + 1, third);
+                if (in.equals(5, first, "*")) {
+                    long last = messageHistory.lastSeq(); // An ack past it would mark future messages as read
+                    receipts.roomAck(username, Math.min(delivered, last), Math.min(read, last));
+                } else {
+                    String peer = in.string(5, first);
+                    long last = privateHistory.lastSeq(username, peer);
+                    if (last > 0) { // Acks for conversations that do not exist are ignored, they would only grow the tracker
+                        receipts.privateAck(username, peer, Math.min(delivered, last), Math.min(read, last));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                sendMessage("Invalid acknowledgement. Use: /ack conversation delivered read"); // Inform about invalid format
+            }
+        }
+
+        // Read a login line, failing with SocketTimeoutException once the deadline has passed
+        private String readLine(long deadline) throws IOException {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Login deadline passed");
+            }
+            socket.setSoTimeout((int) remaining);
+            return in.readLine();
+        }
+
+        // Close the connection; the reader thread then cleans up
+        private void disconnect() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                EventLog.error("close-failed", e, "user", username); // Print error if socket closing fails
+            }
+        }
+
+        // Answer a login request directly, before the queue is started
+        private void reply(String response) {
+            try {
+                OutboundQueue.write(out, Collections.singletonList(response));
+            } catch (IOException e) {
+                disconnect(); // The login loop notices the closed socket on its next read
+            }
+        }
+
+        // Relay a typing event unless it repeats the previous one too soon; state is one of the "start" and "stop" constants
+        private void typing(String target, String state) {
+            long now = System.currentTimeMillis();
+            if (state == lastTypingState && target.equals(lastTypingTarget) && now - lastTypingAt < TYPING_DEBOUNCE_MS) {
+                return; // Debounce clients that send an event per keystroke
+            }
+            lastTypingTarget = target;
+            lastTypingState = state;
+            lastTypingAt = now;
+            relayTyping(target, state, this);
+        }
+
+        // Stream the room history up to now to this client; later messages reach it live
         private void sendHistory() {
-            synchronized (messageHistory) { // Synchronize access to message history
-                for (String msg : messageHistory) { // Iterate over each message in history
-                    sendMessage(msg); // Send message to client
+            long upTo;
+            synchronized (messageHistory) { // Broadcasts append and post their fan-out under this lock, so later messages arrive live
+                upTo = messageHistory.lastSeq(); // Only the range is fixed here, the messages are copied page by page
+                historyUpTo = upTo;
+            }
+            long[] sent = {0}; // Seq of the last history message queued
+            outbound.backfill(() -> (sent[0] = sendHistoryPage(sent[0], upTo)) < upTo);
+        }
+
+        // Queue the history messages after one seq, up to a page of them and no later than upTo, packed into compressed
+        // frames if the client accepts them; returns the seq of the last one queued, or upTo when none are left
+        private long sendHistoryPage(long after, long upTo) {
+            List<MessageStore.Entry> page = messageHistory.page(after, upTo, HISTORY_PAGE); // Copied under the store's lock only
+            if (page.isEmpty()) {
+                return upTo; // Nothing left, or it was evicted while the client was catching up
+            }
+            if (!supports(Compression.CAPABILITY)) {
+                for (MessageStore.Entry entry : page) {
+                    sendSequenced(entry.seq, entry.text, null, OutboundQueue.Lane.BULK); // Send message to client, behind live traffic
+                }
+            } else {
+                StringBuilder payload = new StringBuilder();
+                for (MessageStore.Entry entry : page) {
+                    if (payload.length() > 0) {
+                        payload.append('\n');
+                    }
+                    payload.append(sequenced(entry.seq, entry.text));
+                    if (payload.length() >= Compression.MAX_FRAME) {
+                        send(payload.toString(), null, OutboundQueue.Lane.BULK);
+                        payload.setLength(0);
+                    }
+                }
+                if (payload.length() > 0) {
+                    send(payload.toString(), null, OutboundQueue.Lane.BULK);
+                }
+            }
+            return page.get(page.size() - 1).seq;
+        }
+
+        // Send a page of this client's private conversation with a peer, oldest first, as
+        // "/phistory peer seq time sender text" lines followed by "/phistory peer end"
+        private void sendPrivateHistory(String[] parts) {
+            int count;
+            long beforeSeq;
+            try {
+                count = Math.min(PRIVATE_HISTORY_PAGE, Integer.parseInt(parts[1]));
+                beforeSeq = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                sendMessage("Invalid history request. Use: /phistory user count [beforeSeq]"); // Inform about invalid format
+                return;
+            }
+            String peer = parts[0];
+            StringBuilder payload = new StringBuilder();
+            for (PrivateHistoryStore.Entry entry : privateHistory.page(username, peer, count, beforeSeq)) { // Read on this client's thread
+                payload.append("/phistory ").append(peer).append(' ').append(entry.seq).append(' ').append(entry.time)
+                        .append(' ').append(entry.sender).append(' ').append(entry.text).append('\n');
+                if (payload.length() >= Compression.MAX_FRAME) {
+                    send(payload.substring(0, payload.length() - 1), null, OutboundQueue.Lane.BULK);
+                    payload.setLength(0);
                 }
             }
+            payload.append("/phistory ").append(peer).append(" end");
+            send(payload.toString(), null, OutboundQueue.Lane.BULK); // Same lane, so the end marker follows the page
+        }
+
+        // Check whether the client announced support for a protocol extension
+        public boolean supports(String capability) {
+            return capabilities.contains(capability);
+        }
+
+        // Adapt a room message to what this client understands
+        public String display(String message) {
+            if (message.startsWith("/file shared ") && !supports("file")) { // /file shared hash sender size token name
+                String[] parts = message.split(" ", 7);
+                return parts[3] + " shared a file: " + parts[6];
+            }
+            return message;
+        }
+
+        // A message of a conversation as this client receives it, tagged with its seq if it acknowledges messages
+        private String sequenced(long seq, String message) {
+            return supports("receipts") ? "/seq " + seq + " " + display(message) : display(message);
         }
 
-        // Send a message to this client
+        // Send a message of a conversation in the given lane; frames is shared between the recipients of a broadcast, or null
+        public void sendSequenced(long seq, String message, Map<String, String> frames, OutboundQueue.Lane lane) {
+            send(sequenced(seq, message), frames, lane);
+        }
+
+        // Send a control or status line to this client
         public void sendMessage(String message) {
-            out.println(message); // Send message to the client's output stream
+            send(message, null, OutboundQueue.Lane.CONTROL);
+        }
+
+        // Queue a line, or lines separated by '\n', compressed if the client accepts it and it is long enough
+        private void send(String payload, Map<String, String> frames, OutboundQueue.Lane lane) {
+            if (payload.length() >= Compression.MIN_LENGTH && supports(Compression.CAPABILITY)) {
+                String frame = frames == null ? Compression.frame(payload) : frames.computeIfAbsent(payload, Compression::frame);
+                if (frame.length() < payload.length()) { // Incompressible text is cheaper as it is
+                    Compression.sent(payload, frame);
+                    outbound.add(lane, frame);
+                    return;
+                }
+            }
+            if (payload.indexOf('\n') < 0) {
+                outbound.add(lane, payload); // Queue the message for the client's writer
+            } else {
+                for (String line : payload.split("\n")) { // Packed lines that were not compressed go out one by one
+                    outbound.add(lane, line);
+                }
+            }
+        }
+
+        // Send an event that is dropped if the client is falling behind
+        public void sendEphemeral(String message) {
+            outbound.addEphemeral(message);
         }
     }
 }
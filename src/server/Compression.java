@@ -0,0 +1,91 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+// Compressed frames for clients that announce the "deflate" capability
+// A frame is "/z <base64 of raw deflate>", holding one or more lines separated by '\n', compressed with a preset dictionary shared with the client
+class Compression {
+    static final String CAPABILITY = "deflate";
+    static final int MIN_LENGTH = Integer.getInteger("chat.compress.min", 256); // Shorter payloads are sent as plain lines
+    static final int MAX_FRAME = 64 * 1024; // Largest payload packed into one frame, in characters
+
+    // Text that typical traffic repeats; must match client.CompressedFrames.DICTIONARY
+    private static final byte[] DICTIONARY = ("/seq /sent * /receipt /typing /users /file shared /file ready "
+            + "Private from Private to : the and you that this have what with for are not just but is it to of in "
+            + "http://https://www. lol ok yes no thanks hello hey ").getBytes(StandardCharsets.UTF_8);
+
+    // Counters for the compression report
+    private static final LongAdder frames = new LongAdder(); // Frames produced, once per payload however many clients get it
+    private static final LongAdder sent = new LongAdder(); // Frames queued to clients, once per recipient
+    private static final LongAdder bytesIn = new LongAdder(); // UTF-8 bytes the sent frames replace, per recipient
+    private static final LongAdder bytesOut = new LongAdder(); // Bytes of the sent frames, per recipient; frames are ASCII
+    private static final LongAdder nanos = new LongAdder(); // Time spent compressing
+
+    // Deflaters are expensive to create, so each sending thread keeps one
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private Compression() {
+    }
+
+    // Build the frame for a payload
+    static String frame(String payload) {
+        long start = System.nanoTime();
+        byte[] input = payload.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] buffer = new byte[input.length + 64]; // Raw deflate never grows input by more than a few bytes per block
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        String frame = "/z " + Base64.getEncoder().encodeToString(Arrays.copyOf(buffer, length));
+        frames.increment();
+        nanos.add(System.nanoTime() - start);
+        return frame;
+    }
+
+    // Count a frame queued to one client in place of its payload; frames that were not smaller are never counted
+    static void sent(String payload, String frame) {
+        sent.increment();
+        bytesIn.add(utf8Length(payload));
+        bytesOut.add(frame.length());
+    }
+
+    // Frames produced and sent, bytes sent against the bytes they replaced, and CPU time per frame produced
+    static String report() {
+        long count = frames.sum();
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        return String.format("frames=%d sent=%d in=%dB out=%dB ratio=%.2f cpu=%.1fus/frame",
+                count, sent.sum(), in, out, in == 0 ? 1.0 : (double) out / in, count == 0 ? 0.0 : nanos.sum() / 1000.0 / count);
+    }
+
+    // Bytes a string takes in UTF-8, without encoding it
+    private static long utf8Length(String text) {
+        long length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                length += Character.isSurrogate(c) ? 1 : 2; // A surrogate pair is 4 bytes for 2 chars
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    // Frames produced plus frames sent so far, which changes whenever the report does
+    static long activity() {
+        return frames.sum() + sent.sum();
+    }
+}
@@ -0,0 +1,315 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Structured server log: an event is a name plus up to three key=value fields, recorded into a preallocated ring of
+// slots without locks and written by a background thread to rotating files and the console, so a handler thread
+// never waits on a stream; a call below the current level returns before touching anything
+final class EventLog {
+    // Severity of an event; events below the current level are dropped at the call
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("chat.log.buffer", 8192))); // Slots, a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final File DIRECTORY = new File(System.getProperty("chat.log.dir", "src/server/logs")); // Where the log files go
+    private static final long MAX_BYTES = Long.getLong("chat.log.maxBytes", 10L * 1024 * 1024); // Size at which the file is rotated
+    private static final int FILES = Integer.getInteger("chat.log.files", 5); // Files kept: server.log, server.log.1 and so on
+    private static final boolean CONSOLE = Boolean.parseBoolean(System.getProperty("chat.log.console", "true")); // Also print events
+    private static final long IDLE_NANOS = 10_000_000; // Writer sleep while the ring is empty; producers never wake it
+
+    // One event; a slot is filled by the thread that claimed it and read by the writer once published
+    private static final class Slot {
+        volatile long published = -1; // Sequence of the event in this slot, set last
+        Level level;
+        long time;
+        String thread;
+        String event;
+        Throwable error;
+        String key1, key2, key3;
+        Object value1, value2, value3;
+    }
+
+    private static final Slot[] ring = new Slot[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong(); // Sequence of the next event to be recorded
+    private static volatile long consumed; // Sequence of the next event to be written; slots below it are free
+    private static final LongAdder dropped = new LongAdder(); // Events lost because the ring was full
+    private static final LongAdder written = new LongAdder(); // Events written
+    private static volatile Level level = parse(System.getProperty("chat.log.level", "info"), Level.INFO);
+    private static volatile boolean closed; // Set by close, the writer then empties the ring and stops
+    private static final Thread writer;
+
+    private static Writer file; // Current log file, only used by the writer thread
+    private static long fileBytes; // Characters in the current file, close to its size for log lines
+    private static boolean fileFailed; // Set once the file cannot be written; events then only go to the console
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Slot();
+        }
+        writer = new Thread(EventLog::run, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private EventLog() {
+    }
+
+    // Whether events of a level are recorded; check it before building costly field values
+    static boolean enabled(Level level) {
+        return level.compareTo(EventLog.level) >= 0;
+    }
+
+    static Level level() {
+        return level;
+    }
+
+    // Change the level at runtime, for example from the admin console
+    static void setLevel(Level level) {
+        EventLog.level = level;
+        record(Level.INFO, "log-level", null, "level", level, null, null, null, null);
+    }
+
+    // The level named, case-insensitively, or the fallback if there is no such level
+    static Level parse(String name, Level fallback) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    static void debug(String event, String key, Object value) {
+        log(Level.DEBUG, event, null, key, value, null, null, null, null);
+    }
+
+    static void debug(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.DEBUG, event, null, key1, value1, key2, value2, null, null);
+    }
+
+    static void info(String event) {
+        log(Level.INFO, event, null, null, null, null, null, null, null);
+    }
+
+    static void info(String event, String key, Object value) {
+        log(Level.INFO, event, null, key, value, null, null, null, null);
+    }
+
+    static void info(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.INFO, event, null, key1, value1, key2, value2, null, null);
+    }
+
+    static void info(String event, String key1, Object value1, String key2, Object value2, String key3, Object value3) {
+        log(Level.INFO, event, null, key1, value1, key2, value2, key3, value3);
+    }
+
+    // For per-session timings on the login path: the long is only boxed once the level lets the event through
+    static void info(String event, String key1, Object value1, String key2, Object value2, String key3, long value3) {
+        if (enabled(Level.INFO)) {
+            record(Level.INFO, event, null, key1, value1, key2, value2, key3, value3);
+        }
+    }
+
+    static void warn(String event, String key, Object value) {
+        log(Level.WARN, event, null, key, value, null, null, null, null);
+    }
+
+    static void warn(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.WARN, event, null, key1, value1, key2, value2, null, null);
+    }
+
+    static void error(String event, Throwable error) {
+        log(Level.ERROR, event, error, null, null, null, null, null, null);
+    }
+
+    static void error(String event, Throwable error, String key, Object value) {
+        log(Level.ERROR, event, error, key, value, null, null, null, null);
+    }
+
+    static void error(String event, Throwable error, String key1, Object value1, String key2, Object value2) {
+        log(Level.ERROR, event, error, key1, value1, key2, value2, null, null);
+    }
+
+    static void log(Level level, String event, Throwable error, String key1, Object value1, String key2, Object value2,
+                    String key3, Object value3) {
+        if (enabled(level)) {
+            record(level, event, error, key1, value1, key2, value2, key3, value3);
+        }
+    }
+
+    // Claim the next slot and fill it; when the writer is a whole ring behind, the event is counted and dropped
+    private static void record(Level level, String event, Throwable error, String key1, Object value1, String key2,
+                               Object value2, String key3, Object value3) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment(); // Never wait for the disk on a handler thread
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Slot slot = ring[(int) sequence & MASK];
+        slot.level = level;
+        slot.time = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.event = event;
+        slot.error = error;
+        slot.key1 = key1;
+        slot.value1 = value1;
+        slot.key2 = key2;
+        slot.value2 = value2;
+        slot.key3 = key3;
+        slot.value3 = value3;
+        slot.published = sequence; // Hands the slot to the writer
+    }
+
+    // Write what is recorded so far and stop the writer; events recorded later are lost
+    static void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Events written and dropped so far
+    static String report() {
+        return "level=" + level + " written=" + written.sum() + " dropped=" + dropped.sum() + " backlog=" + (claimed.get() - consumed);
+    }
+
+    private static void run() {
+        StringBuilder line = new StringBuilder(256);
+        StringWriter trace = new StringWriter();
+        long reportedDrops = 0;
+        while (true) {
+            Slot slot = ring[(int) consumed & MASK];
+            if (slot.published != consumed) {
+                long drops = dropped.sum();
+                if (drops != reportedDrops) { // Said from here, where it cannot be dropped itself
+                    line.setLength(0);
+                    format(line, Level.WARN, System.currentTimeMillis(), "event-log", "log-dropped", "events", drops - reportedDrops);
+                    write(line);
+                    reportedDrops = drops;
+                }
+                flush();
+                if (closed && claimed.get() == consumed) {
+                    closeFile();
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            line.setLength(0);
+            format(line, slot.level, slot.time, slot.thread, slot.event, slot.key1, slot.value1);
+            field(line, slot.key2, slot.value2);
+            field(line, slot.key3, slot.value3);
+            if (slot.error != null) {
+                trace.getBuffer().setLength(0);
+                slot.error.printStackTrace(new PrintWriter(trace));
+                line.append(System.lineSeparator()).append(trace.getBuffer(), 0, trace.getBuffer().length() - System.lineSeparator().length());
+            }
+            slot.thread = slot.event = slot.key1 = slot.key2 = slot.key3 = null; // Let the values be collected
+            slot.value1 = slot.value2 = slot.value3 = slot.error = null;
+            consumed++; // Frees the slot for producers
+            write(line);
+            written.increment();
+        }
+    }
+
+    // "2026-01-01T12:00:00.000Z INFO  thread event key=value"
+    private static void format(StringBuilder line, Level level, long time, String thread, String event, String key, Object value) {
+        line.append(Instant.ofEpochMilli(time)).append(' ').append(level);
+        for (int i = level.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(' ').append(thread).append(' ').append(event);
+        field(line, key, value);
+    }
+
+    // Append " key=value", quoting values with spaces so the line still splits into fields
+    private static void field(StringBuilder line, String key, Object value) {
+        if (key == null) {
+            return;
+        }
+        String text = String.valueOf(value);
+        line.append(' ').append(key).append('=');
+        if (text.isEmpty() || text.indexOf(' ') >= 0 || text.indexOf('"') >= 0) {
+            line.append('"').append(text.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else {
+            line.append(text);
+        }
+    }
+
+    private static void write(CharSequence line) {
+        if (CONSOLE) {
+            System.out.println(line); // Only this thread prints, so the console lock is never contended
+        }
+        if (fileFailed) {
+            return;
+        }
+        try {
+            if (file == null || fileBytes >= MAX_BYTES) {
+                rotate();
+            }
+            file.append(line).append(System.lineSeparator());
+            fileBytes += line.length() + System.lineSeparator().length();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    // Open the log file, first shifting server.log to server.log.1 and so on if it is full
+    private static void rotate() throws IOException {
+        closeFile();
+        if (!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) {
+            throw new IOException("Failed to create log directory " + DIRECTORY.getAbsolutePath());
+        }
+        File current = new File(DIRECTORY, "server.log");
+        if (current.length() >= MAX_BYTES) {
+            new File(DIRECTORY, "server.log." + (FILES - 1)).delete();
+            for (int i = FILES - 2; i >= 1; i--) {
+                new File(DIRECTORY, "server.log." + i).renameTo(new File(DIRECTORY, "server.log." + (i + 1)));
+            }
+            current.renameTo(new File(DIRECTORY, "server.log.1"));
+        }
+        fileBytes = current.length();
+        file = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(current, true), StandardCharsets.UTF_8));
+    }
+
+    private static void flush() {
+        if (file != null) {
+            try {
+                file.flush();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    // Give up on the file; the stack trace goes to the console since the log itself cannot take it
+    private static void failed(IOException e) {
+        e.printStackTrace();
+        fileFailed = true;
+        closeFile();
+    }
+
+    private static void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing more can be done with it
+            }
+            file = null;
+        }
+    }
+}
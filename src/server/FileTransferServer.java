@@ -0,0 +1,350 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Side channel for file transfers, so uploads never block or corrupt the line-based chat connection
+class FileTransferServer extends Thread {
+    static final int PORT = 12346; // Port for file data connections
+    static final int CHUNK_SIZE = 256 * 1024; // Every chunk except the last one has exactly this size
+    static final long MAX_FILE_SIZE = Long.getLong("chat.file.max", 2L * 1024 * 1024 * 1024); // Largest file a client may offer
+    private static final long RATE_LIMIT = Long.getLong("chat.file.rate", 4L * 1024 * 1024); // Bytes per second per transfer
+    private static final long TRANSFER_TTL_MS = 24L * 60 * 60 * 1000; // How long an offered file is kept
+    private static final int HEADER_TIMEOUT_MS = 30000; // Time allowed to send the request line and each chunk
+    private static final int MAX_OPEN_PER_USER = Integer.getInteger("chat.file.maxOpen", 8); // Unfinished offers a user may hold
+    private static final int MAX_TRANSFERS = Integer.getInteger("chat.file.maxTransfers", 64); // Data connections served at once
+    private static final File SPOOL_DIR = new File("src/server/transfers"); // Directory holding partial uploads
+    static final AttachmentStore attachments = new AttachmentStore(new File("src/server/attachments")); // Completed uploads
+
+    private static final Map<String, Transfer> transfers = new ConcurrentHashMap<>(); // Transfers by id
+    private static final AtomicLong nextId = new AtomicLong(System.currentTimeMillis()); // Source of transfer ids
+    private static final SecureRandom random = new SecureRandom(); // Source of transfer tokens
+    private static final byte[] downloadKey = loadKey(new File("src/server/attachments/download.key")); // Signs download tokens, kept across restarts like the history that quotes them
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(0, MAX_TRANSFERS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "file-transfer");
+                thread.setDaemon(true);
+                return thread;
+            }); // One thread per data connection up to the limit; beyond it connections are turned away, not queued
+    private volatile ServerSocketChannel listener; // Listening channel, closed when the server drains
+
+    // One upload offered by a sender to a recipient or to the room
+    static class Transfer {
+        final String id; // Transfer id shared with both clients
+        final String sender; // User uploading the file
+        final String recipient; // User the file is for, or "*" for the whole room
+        final String name; // File name as given by the sender
+        final long size; // File size in bytes
+        final String uploadToken; // Secret the sender presents on the data connection
+        final File data; // Spool file holding the received bytes
+        final MessageDigest digest; // SHA-256 of the bytes received so far, names the stored blob
+        final long created = System.currentTimeMillis(); // Creation time, for expiry
+        int[] checksums; // CRC32 of every chunk received so far
+        long received; // Bytes verified and stored so far
+        volatile boolean complete; // True once every byte has been received
+
+        Transfer(String id, String sender, String recipient, String name, long size) {
+            this.id = id;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.name = name;
+            this.size = size;
+            this.uploadToken = newToken();
+            this.data = new File(SPOOL_DIR, id + ".part");
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // Every Java runtime provides SHA-256
+            }
+            if (size < 0 || size > MAX_FILE_SIZE) {
+                throw new IllegalArgumentException("File size " + size); // Callers check first, the table below is sized from it
+            }
+            this.checksums = new int[Math.toIntExact((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+        }
+    }
+
+    public FileTransferServer() {
+        super("file-transfer-acceptor");
+        setDaemon(true); // Stops with the chat server
+    }
+
+    // Register a new transfer and drop the ones that expired; returns null if the sender already has too many unfinished
+    // ones, each of which holds a digest, a checksum table and possibly a spool file until it expires
+    static synchronized Transfer createTransfer(String sender, String recipient, String name, long size) {
+        long now = System.currentTimeMillis();
+        int open = 0;
+        for (Iterator<Transfer> it = transfers.values().iterator(); it.hasNext(); ) {
+            Transfer old = it.next();
+            if (now - old.created > TRANSFER_TTL_MS) {
+                it.remove();
+                old.data.delete(); // Free the disk space of abandoned uploads
+            } else if (!old.complete && old.sender.equals(sender)) {
+                open++;
+            }
+        }
+        if (open >= MAX_OPEN_PER_USER) {
+            return null;
+        }
+        Transfer transfer = new Transfer(Long.toString(nextId.incrementAndGet(), 36), sender, recipient, name, size);
+        transfers.put(transfer.id, transfer);
+        return transfer;
+    }
+
+    @Override
+    public void run() {
+        if (!SPOOL_DIR.isDirectory() && !SPOOL_DIR.mkdirs()) {
+            EventLog.warn("mkdir-failed", "dir", SPOOL_DIR.getAbsolutePath());
+            return;
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            if (server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true); // A replacement process can bind while this one drains
+            }
+            server.bind(new InetSocketAddress(PORT));
+            listener = server;
+            EventLog.info("transfer-listening", "port", PORT);
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept(); // Blocking accept, one pool thread per transfer
+                try {
+                    workers.execute(() -> handle(channel));
+                } catch (RejectedExecutionException e) {
+                    busy(channel);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // Closed by stopListening, transfers in progress resume against the next server
+        } catch (IOException e) {
+            EventLog.error("transfer-listen-failed", e, "port", PORT); // Print error if the transfer port cannot be used
+        }
+    }
+
+    // Stop accepting data connections; clients retry their transfers against the next server
+    void stopListening() {
+        ServerSocketChannel server = listener;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                EventLog.error("transfer-close-failed", e); // Print error if the channel cannot be closed
+            }
+        }
+    }
+
+    // Turn a data connection away while every worker is busy; the client retries after its backoff
+    private static void busy(SocketChannel channel) {
+        EventLog.warn("transfer-rejected", "remote", channel.socket().getRemoteSocketAddress(), "active", workers.getActiveCount());
+        try (SocketChannel ch = channel) {
+            writeLine(ch, "ERROR busy");
+        } catch (IOException e) {
+            // The client went away already
+        }
+    }
+
+    // Serve one data connection: either an upload or a ranged download of a stored blob
+    private void handle(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            ch.socket().setSoTimeout(HEADER_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(ch.socket().getInputStream()));
+            String[] request = readLine(in).split(" ");
+            Transfer transfer = request.length >= 3 ? transfers.get(request[1]) : null;
+            if (request[0].equals("UPLOAD") && transfer != null && transfer.uploadToken.equals(request[2])) {
+                receive(transfer, in, ch);
+            } else if (request[0].equals("GET") && request.length == 5 && validDownload(request[1], request[2])) { // GET hash token offset length
+                sendRange(request[1], Long.parseLong(request[3]), Long.parseLong(request[4]), ch);
+            } else {
+                writeLine(ch, "ERROR unknown transfer");
+            }
+        } catch (IOException | RuntimeException e) {
+            EventLog.error("transfer-failed", e); // The client resumes from the last verified chunk
+        }
+    }
+
+    // Receive chunks from the sender, verifying each checksum before it counts as received
+    private void receive(Transfer transfer, DataInputStream in, SocketChannel ch) throws IOException {
+        synchronized (transfer) { // Only one upload connection per transfer at a time
+            if (transfer.complete) {
+                writeLine(ch, "DONE");
+                return;
+            }
+            writeLine(ch, "OFFSET " + transfer.received); // Resume point, always on a chunk boundary
+            byte[] chunk = new byte[CHUNK_SIZE];
+            CRC32 crc = new CRC32();
+            Throttle throttle = new Throttle();
+            try (FileChannel file = FileChannel.open(transfer.data.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                while (transfer.received < transfer.size) {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    long remaining = transfer.size - transfer.received;
+                    if (length != Math.min(CHUNK_SIZE, remaining)) {
+                        writeLine(ch, "ERROR bad chunk size");
+                        return;
+                    }
+                    in.readFully(chunk, 0, length);
+                    crc.reset();
+                    crc.update(chunk, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        writeLine(ch, "ERROR checksum mismatch"); // Sender resends from the last good chunk
+                        return;
+                    }
+                    file.write(ByteBuffer.wrap(chunk, 0, length), transfer.received);
+                    transfer.digest.update(chunk, 0, length); // Chunks arrive in order, even across resumes
+                    transfer.checksums[(int) (transfer.received / CHUNK_SIZE)] = checksum;
+                    transfer.received += length;
+                    throttle.acquire(length);
+                }
+                file.force(false);
+            }
+            AttachmentStore.Blob blob = attachments.add(toHex(transfer.digest.digest()), transfer.data, transfer.checksums);
+            transfer.complete = true;
+            writeLine(ch, "DONE");
+            ChatServer.fileReady(transfer, blob); // Tell the recipients the file can be fetched
+        }
+    }
+
+    // Token that lets a recipient fetch a blob: an HMAC of its hash, so knowing the hash alone is not enough; it is only
+    // sent to the users a file was sent or shared with
+    static String downloadToken(String hash) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(downloadKey, "HmacSHA256"));
+            return toHex(Arrays.copyOf(mac.doFinal(hash.getBytes(StandardCharsets.US_ASCII)), 16));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // Every Java runtime provides HmacSHA256
+        }
+    }
+
+    // Check a download token in constant time
+    private static boolean validDownload(String hash, String token) {
+        return MessageDigest.isEqual(downloadToken(hash).getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // Read the token key, creating it on first start
+    private static byte[] loadKey(File file) {
+        try {
+            if (file.length() == 32) {
+                return Files.readAllBytes(file.toPath());
+            }
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            Files.write(file.toPath(), key);
+            return key;
+        } catch (IOException e) {
+            EventLog.error("download-key-failed", e, "file", file); // Tokens then only hold until the next restart
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            return key;
+        }
+    }
+
+    // Send a range of a stored blob straight from disk, widened to whole chunks so every chunk keeps its checksum
+    private void sendRange(String hash, long offset, long length, SocketChannel ch) throws IOException {
+        AttachmentStore.Blob blob = attachments.get(hash);
+        if (blob == null) {
+            writeLine(ch, "ERROR unknown file");
+            return;
+        }
+        long position = Math.max(0, Math.min(offset, blob.size)) / CHUNK_SIZE * CHUNK_SIZE; // Align to a chunk
+        long end = length < 0 ? blob.size : Math.min(blob.size, offset + length);
+        end = Math.min(blob.size, (end + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE); // Widen to a chunk boundary
+        writeLine(ch, "RANGE " + blob.size + " " + position + " " + end);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        Throttle throttle = new Throttle();
+        try (FileChannel file = FileChannel.open(attachments.file(hash).toPath(), StandardOpenOption.READ)) {
+            while (position < end) {
+                int chunkLength = (int) Math.min(CHUNK_SIZE, blob.size - position);
+                header.clear();
+                header.putInt(chunkLength).putInt(blob.checksums[(int) (position / CHUNK_SIZE)]).flip();
+                while (header.hasRemaining()) {
+                    ch.write(header);
+                }
+                long sent = 0;
+                while (sent < chunkLength) {
+                    sent += file.transferTo(position + sent, chunkLength - sent, ch); // Zero-copy from disk to socket
+                }
+                position += chunkLength;
+                throttle.acquire(chunkLength);
+            }
+        }
+    }
+
+    // Read one ASCII request line
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0 || line.length() > 512) {
+                throw new EOFException("Request line missing");
+            }
+            line.append((char) c);
+        }
+        return line.toString().trim();
+    }
+
+    // Write one ASCII response line
+    private static void writeLine(SocketChannel ch, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            ch.write(buffer);
+        }
+    }
+
+    // Lowercase hex form of a digest
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // Random token that lets only the sender upload to a transfer
+    private static String newToken() {
+        byte[] bytes = new byte[12];
+        random.nextBytes(bytes);
+        return toHex(bytes);
+    }
+
+    // Paces one transfer to the configured rate so large files cannot starve chat traffic
+    private static class Throttle {
+        private final long start = System.nanoTime(); // When the transfer started
+        private long bytes; // Bytes moved so far
+
+        void acquire(long count) {
+            bytes += count;
+            long due = start + bytes * 1_000_000_000L / RATE_LIMIT; // When this many bytes may have been moved
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
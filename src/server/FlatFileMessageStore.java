@@ -0,0 +1,94 @@
+package server;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// Room history held in memory and written to a "seq text" file when the server drains, for the next server to replay
+class FlatFileMessageStore implements MessageStore {
+    private final File file; // Saved history
+    private final int limit; // Messages kept
+    private final Consumer<Entry> evicted; // Told about every message that drops out
+    private final List<Entry> entries = new ArrayList<>(); // Messages in seq order
+    private long lastSeq; // Seq of the latest message
+
+    FlatFileMessageStore(File file, int limit, Consumer<Entry> evicted) {
+        this.file = file;
+        this.limit = limit;
+        this.evicted = evicted;
+        load();
+    }
+
+    // Load the room history saved by the previous server
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    continue; // Skip damaged lines
+                }
+                Entry entry = new Entry(Long.parseLong(line.substring(0, space)), line.substring(space + 1));
+                entries.add(entry);
+                lastSeq = entry.seq;
+            }
+        } catch (IOException | NumberFormatException e) {
+            EventLog.error("history-read-failed", e, "file", file); // Start with whatever was read
+        }
+        if (entries.size() > limit) {
+            entries.subList(0, entries.size() - limit).clear(); // Saved with a larger limit
+        }
+    }
+
+    @Override
+    public synchronized long append(String text) {
+        if (entries.size() >= limit) {
+            evicted.accept(entries.remove(0)); // Remove oldest message if limit is reached
+        }
+        entries.add(new Entry(++lastSeq, text));
+        return lastSeq;
+    }
+
+    @Override
+    public synchronized List<Entry> page(long after, long upTo, int limit) {
+        return MessageStore.page(entries, after, upTo, limit);
+    }
+
+    // Messages only reach the disk when the server drains, there is nothing to wait for
+    @Override
+    public CompletableFuture<?> durable() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Write the room history so the next server can replay it
+    @Override
+    public synchronized void close() {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"))) {
+            for (Entry entry : entries) {
+                writer.println(entry.seq + " " + entry.text);
+            }
+        } catch (IOException e) {
+            EventLog.error("history-write-failed", e, "file", temporary); // Print error if writing to file fails
+            return;
+        }
+        if (!temporary.renameTo(file)) { // Replace the old file in one step
+            EventLog.warn("history-save-failed", "file", file.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.io.*;
+
+// Users kept as "name:password" lines in users.txt; every lookup reads the file from the start
+class FlatFileUserStore implements UserStore {
+    static final String FILE = "src/server/users.txt"; // File path for storing user credentials
+
+    @Override
+    public boolean validate(String username, String password) {
+        String[] user = find(username);
+        return user != null && user[1].equals(password); // Match credentials
+    }
+
+    // The "name:password" fields of a user, or null
+    private static String[] find(String username) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(FILE))) { // Read credentials from file
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(":"); // Split username and password
+                if (parts.length == 2 && parts[0].equals(username)) {
+                    return parts;
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return null; // No user signed up yet
+        } catch (IOException e) {
+            EventLog.error("users-read-failed", e, "file", FILE); // Print error if reading file fails
+        }
+        return null;
+    }
+
+    // Synchronized so two sign-ups for the same name cannot both pass the check
+    @Override
+    public synchronized boolean register(String username, String password) {
+        if (find(username) != null) { // Check if user already exists
+            EventLog.info("signup-exists", "user", username);
+            return false; // Return false if user exists
+        }
+        try {
+            File file = new File(FILE);
+            if (!file.exists()) { // Check if users file exists
+                if (file.createNewFile()) { // Create the file if it does not exist
+                    EventLog.info("users-created", "file", file.getAbsolutePath());
+                } else {
+                    EventLog.warn("users-create-failed", "file", file.getAbsolutePath());
+                    return false; // Return false if file creation fails
+                }
+            }
+            try (PrintWriter writer = new PrintWriter(new FileWriter(FILE, true))) { // Append new user to file
+                writer.println(username + ":" + password); // Write new user credentials
+                EventLog.debug("user-stored", "user", username);
+                return true; // Return true if registration is successful
+            }
+        } catch (IOException e) {
+            EventLog.error("users-write-failed", e, "file", FILE); // Print error if writing to file fails
+        }
+        return false; // Return false if an unknown error occurs
+    }
+
+    @Override
+    public void close() {
+        // Every sign-up is written when it happens
+    }
+}
@@ -0,0 +1,194 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+// Write-behind stage in front of a record log: callers queue records and get a future, and one writer thread appends
+// them in batches and syncs once per batch or per time window, so durability costs one fsync per batch, not per record
+class GroupCommitLog implements Closeable {
+    // When appended records are forced to disk before their futures complete
+    enum SyncPolicy {
+        NONE, // Never; records are durable once the operating system writes them back
+        PERIODIC, // At most once per sync window, completing every record written since the last sync
+        BATCH // After every batch
+    }
+
+    private static final int BATCH_SIZE = Integer.getInteger("chat.commit.batch", 256); // Records written per batch
+    private static final SyncPolicy POLICY = SyncPolicy.valueOf(System.getProperty("chat.commit.sync", "batch").toUpperCase(Locale.ROOT));
+    private static final long SYNC_MS = Long.getLong("chat.commit.syncMs", 50); // Sync window of the periodic policy
+    private static final int QUEUE_LIMIT = Integer.getInteger("chat.commit.queue", 65536); // Writers wait beyond this backlog
+
+    // A queued append, or a rewrite of the whole log
+    private static class Pending {
+        final byte[] payload; // Record to append, null for a rewrite
+        final List<byte[]> records; // New content of the log, null for an append
+        final CompletableFuture<Long> done = new CompletableFuture<>(); // Completes with the record's offset
+        long offset; // Set once written
+
+        Pending(byte[] payload, List<byte[]> records) {
+            this.payload = payload;
+            this.records = records;
+        }
+    }
+
+    private final RecordLog log;
+    private final SyncPolicy policy; // chat.commit.sync unless one is given
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>(); // Operations in the order they were submitted
+    private final List<Pending> unsynced = new ArrayList<>(); // Written but not yet synced, periodic policy only
+    private final Thread writer;
+    private boolean closed; // Set once close was called, guarded by this
+    private long lastSync = System.currentTimeMillis(); // Used by the periodic policy
+
+    GroupCommitLog(RecordLog log, String name) {
+        this(log, name, POLICY);
+    }
+
+    // Sync by a given policy rather than the configured one
+    GroupCommitLog(RecordLog log, String name, SyncPolicy policy) {
+        this.log = log;
+        this.policy = policy;
+        writer = new Thread(this::run, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Queue a record; the future completes with its offset once it is written and synced as the policy requires
+    CompletableFuture<Long> append(byte[] payload) {
+        return submit(new Pending(payload, null));
+    }
+
+    // Queue a replacement of the whole log; appends queued before it are written first and then discarded with the old file
+    CompletableFuture<Long> rewrite(List<byte[]> records) {
+        return submit(new Pending(null, records));
+    }
+
+    private synchronized CompletableFuture<Long> submit(Pending pending) {
+        while (queue.size() >= QUEUE_LIMIT && !closed) {
+            try {
+                wait(); // The disk is behind, hold the producer back instead of growing the queue
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (closed) {
+            pending.done.completeExceptionally(new IOException("Log is closed"));
+        } else {
+            queue.add(pending);
+            notifyAll(); // Wake the writer
+        }
+        return pending.done;
+    }
+
+    // Write what is queued, sync it and close the log
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+            log.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            EventLog.error("log-close-failed", e, "log", writer.getName());
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            boolean closing;
+            synchronized (this) {
+                while (queue.isEmpty() && !closed) {
+                    long wait = unsynced.isEmpty() ? 0 : lastSync + SYNC_MS - System.currentTimeMillis();
+                    if (!unsynced.isEmpty() && wait <= 0) {
+                        break; // The sync window of the records already written is over
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty() && closed && unsynced.isEmpty()) {
+                    return;
+                }
+                if (!queue.isEmpty() && queue.peek().records != null) {
+                    batch.add(queue.poll()); // A rewrite goes alone
+                } else {
+                    while (!queue.isEmpty() && queue.peek().records == null && batch.size() < BATCH_SIZE) {
+                        batch.add(queue.poll());
+                    }
+                }
+                closing = closed;
+                notifyAll(); // Room for producers waiting on a full queue
+            }
+            write(batch, closing);
+            batch.clear();
+        }
+    }
+
+    // Write a batch and complete the futures its sync policy allows; closing forces everything written
+    private void write(List<Pending> batch, boolean closing) {
+        try {
+            if (batch.size() == 1 && batch.get(0).records != null) {
+                log.rewrite(batch.get(0).records); // Synced by the rewrite, and so is everything it replaced
+                complete(batch);
+                complete(unsynced);
+                lastSync = System.currentTimeMillis();
+                return;
+            }
+            if (!batch.isEmpty()) {
+                List<byte[]> payloads = new ArrayList<>(batch.size());
+                for (Pending pending : batch) {
+                    payloads.add(pending.payload);
+                }
+                long[] offsets = log.appendAll(payloads);
+                for (int i = 0; i < offsets.length; i++) {
+                    batch.get(i).offset = offsets[i];
+                }
+            }
+            if (policy == SyncPolicy.BATCH) {
+                if (!batch.isEmpty()) {
+                    log.force();
+                }
+                complete(batch);
+            } else if (policy == SyncPolicy.NONE) {
+                complete(batch);
+            } else {
+                unsynced.addAll(batch);
+                long now = System.currentTimeMillis();
+                if (!unsynced.isEmpty() && (now - lastSync >= SYNC_MS || closing)) {
+                    log.force();
+                    lastSync = now;
+                    complete(unsynced);
+                }
+            }
+        } catch (IOException e) {
+            EventLog.error("log-write-failed", e, "log", writer.getName()); // The records may be lost; callers learn it from their futures
+            for (Pending pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+            for (Pending pending : unsynced) {
+                pending.done.completeExceptionally(e);
+            }
+            unsynced.clear();
+        }
+    }
+
+    // Complete the futures of written records and forget them
+    private static void complete(List<Pending> written) {
+        for (Pending pending : written) {
+            pending.done.complete(pending.offset);
+        }
+        written.clear();
+    }
+}
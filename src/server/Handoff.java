@@ -0,0 +1,76 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Deployment without a reconnect storm: the new process binds the ports next to the old one (SO_REUSEPORT), asks the
+// old one to drain and waits for it to exit before loading the history it saved; clients queue in the new backlog meanwhile
+class Handoff {
+    private static final File PID_FILE = new File("src/server/server.pid"); // Process id of the running server
+    private static final long TAKEOVER_TIMEOUT_MS = Long.getLong("chat.handoff.timeoutMs", 60_000); // Longest wait for the old process
+
+    private Handoff() {
+    }
+
+    // Ask the process named in the pid file to drain and wait until it has exited
+    static void takeOver() {
+        long pid;
+        try {
+            pid = Long.parseLong(new String(Files.readAllBytes(PID_FILE.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            EventLog.info("handoff-none");
+            return;
+        }
+        Optional<ProcessHandle> previous = ProcessHandle.of(pid);
+        if (!previous.isPresent() || pid == ProcessHandle.current().pid() || !isChatServer(previous.get())) { // Left by a crash, maybe reused
+            EventLog.info("handoff-stale", "pid", pid);
+            return;
+        }
+        EventLog.info("handoff-draining", "pid", pid);
+        previous.get().destroy(); // SIGTERM, which runs the old server's drain hook
+        try {
+            previous.get().onExit().get(TAKEOVER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            EventLog.info("handoff-exited", "pid", pid);
+        } catch (TimeoutException e) {
+            EventLog.warn("handoff-timeout", "pid", pid);
+        } catch (InterruptedException | ExecutionException e) {
+            EventLog.error("handoff-failed", e, "pid", pid); // Continue, the history file is as complete as it gets
+        }
+    }
+
+    // Whether a process runs the chat server, judged by the main class on its command line; a process that cannot be
+    // inspected is not signalled, since after a crash its pid may belong to anything
+    private static boolean isChatServer(ProcessHandle process) {
+        String main = ChatServer.class.getName();
+        ProcessHandle.Info info = process.info();
+        return info.arguments().map(arguments -> Arrays.asList(arguments).contains(main)).orElse(false)
+                || info.commandLine().map(line -> line.contains(" " + main)).orElse(false);
+    }
+
+    // Record this process as the running server
+    static void writePidFile() {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(PID_FILE))) {
+            writer.println(ProcessHandle.current().pid());
+        } catch (IOException e) {
+            EventLog.error("pid-write-failed", e, "file", PID_FILE); // Only needed for a later handoff
+        }
+    }
+
+    // Remove the pid file if it still names this process
+    static void removePidFile() {
+        try {
+            String pid = new String(Files.readAllBytes(PID_FILE.toPath()), StandardCharsets.UTF_8).trim();
+            if (pid.equals(Long.toString(ProcessHandle.current().pid()))) {
+                Files.delete(PID_FILE.toPath());
+            }
+        } catch (IOException e) {
+            // Already replaced by the next server
+        }
+    }
+}
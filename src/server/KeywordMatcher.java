@@ -0,0 +1,184 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Case-insensitive whole-word search for many keywords at once using an Aho-Corasick automaton
+class KeywordMatcher {
+    private final int[] edgeStart; // First edge of each state; the edges of state s are edgeStart[s] .. edgeStart[s + 1]
+    private final char[] edgeChar; // Edge labels, sorted within each state
+    private final int[] edgeTarget; // State reached by each edge
+    private final int[] fail; // Longest proper suffix of each state that is also a trie path
+    private final int[] matchLength; // Length of the keyword ending in each state, 0 if none
+    private final int[] outLink; // Nearest state on the failure chain that ends a keyword, -1 if none
+    private final int keywords; // Number of distinct keywords
+
+    KeywordMatcher(Iterable<String> words) {
+        // Build the trie with a map of edges keyed (state, char)
+        Map<Long, Integer> children = new HashMap<>();
+        List<Integer> lengths = new ArrayList<>();
+        lengths.add(0);
+        int count = 0;
+        for (String word : words) {
+            String keyword = word.trim();
+            if (keyword.isEmpty()) {
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                long key = ((long) state << 16) | Character.toLowerCase(keyword.charAt(i)); // Folded like scan, whatever the default locale
+                Integer child = children.get(key);
+                if (child == null) {
+                    child = lengths.size();
+                    lengths.add(0);
+                    children.put(key, child);
+                }
+                state = child;
+            }
+            if (lengths.get(state) == 0) {
+                count++;
+            }
+            lengths.set(state, keyword.length());
+        }
+        keywords = count;
+
+        // Flatten the edges into sorted per-state ranges
+        int states = lengths.size();
+        long[] edges = new long[children.size()]; // state << 16 | char, sorted
+        int e = 0;
+        for (long key : children.keySet()) {
+            edges[e++] = key;
+        }
+        Arrays.sort(edges);
+        edgeStart = new int[states + 1];
+        edgeChar = new char[edges.length];
+        edgeTarget = new int[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            edgeStart[(int) (edges[i] >>> 16) + 1]++;
+            edgeChar[i] = (char) edges[i];
+            edgeTarget[i] = children.get(edges[i]);
+        }
+        for (int s = 0; s < states; s++) {
+            edgeStart[s + 1] += edgeStart[s];
+        }
+        matchLength = new int[states];
+        for (int s = 0; s < states; s++) {
+            matchLength[s] = lengths.get(s);
+        }
+
+        // Breadth-first pass computing failure and output links
+        fail = new int[states];
+        outLink = new int[states];
+        Arrays.fill(outLink, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = edgeStart[state]; i < edgeStart[state + 1]; i++) {
+                int child = edgeTarget[i];
+                int suffix = state == 0 ? 0 : step(fail[state], edgeChar[i]);
+                fail[child] = suffix;
+                outLink[child] = matchLength[suffix] > 0 ? suffix : outLink[suffix];
+                queue.add(child);
+            }
+        }
+    }
+
+    // Number of keywords the matcher looks for
+    int size() {
+        return keywords;
+    }
+
+    // Whether the text contains any keyword as a whole word
+    boolean matches(String text) {
+        return scan(text, null);
+    }
+
+    // Replace every keyword found as a whole word with asterisks; returns the same instance when nothing matched
+    String mask(String text) {
+        char[] masked = text.toCharArray();
+        return scan(text, masked) ? new String(masked) : text;
+    }
+
+    // Run the automaton over the text, masking matches into the array if one is given; stops at the first match otherwise
+    private boolean scan(String text, char[] masked) {
+        boolean found = false;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, Character.toLowerCase(text.charAt(i)));
+            for (int s = matchLength[state] > 0 ? state : outLink[state]; s > 0; s = outLink[s]) {
+                int start = i + 1 - matchLength[s];
+                if (isWordBoundary(text, start - 1) && isWordBoundary(text, i + 1)) {
+                    if (masked == null) {
+                        return true;
+                    }
+                    Arrays.fill(masked, start, i + 1, '*');
+                    found = true;
+                    break; // The longest match already covers the shorter ones
+                }
+            }
+        }
+        return found;
+    }
+
+    // Follow the edge for a character, falling back along failure links
+    private int step(int state, char c) {
+        while (true) {
+            int target = edge(state, c);
+            if (target >= 0) {
+                return target;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    // Target of the edge labelled c leaving a state, -1 if there is none
+    private int edge(int state, char c) {
+        int low = edgeStart[state];
+        int high = edgeStart[state + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char label = edgeChar[mid];
+            if (label < c) {
+                low = mid + 1;
+            } else if (label > c) {
+                high = mid - 1;
+            } else {
+                return edgeTarget[mid];
+            }
+        }
+        return -1;
+    }
+
+    // Whether the position is outside the text or holds a character that cannot continue a word
+    private static boolean isWordBoundary(String text, int index) {
+        return index < 0 || index >= text.length() || !Character.isLetterOrDigit(text.charAt(index));
+    }
+
+    // Matcher for the keywords in a file, one per line with '#' comments; empty if the file is not set or missing
+    static KeywordMatcher load(String path) {
+        List<String> words = new ArrayList<>();
+        if (path != null && !path.isEmpty()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().startsWith("#")) {
+                        words.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                EventLog.error("keywords-read-failed", e); // Run without the list rather than refusing to start
+            }
+        }
+        return new KeywordMatcher(words);
+    }
+}
@@ -0,0 +1,155 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+// Reads '\n' terminated lines straight from the socket's bytes; the current line is a view into the buffer that is
+// inspected in place, and only the parts the server keeps are turned into Strings
+// The buffer is borrowed from the shared pool when a line starts arriving and returned once nothing is pending,
+// so a connection waiting for input holds no buffer
+class LineReader {
+    private static final Charset CHARSET = Charset.defaultCharset(); // Same encoding the writer side uses
+    private static final int INITIAL_SIZE = 2048; // Buffer size for ordinary chat lines
+    static final int MAX_LINE = 64 * 1024; // Longer lines end the connection
+
+    private final InputStream in;
+    private final byte[] first = new byte[1]; // Receives the first byte of a line while no buffer is held
+    private byte[] buffer; // Pooled buffer, null while no input is pending
+    private int start; // First unread byte
+    private int end; // One past the last byte read from the stream
+    private int lineStart; // Current line: buffer[lineStart .. lineEnd), without the line terminator
+    private int lineEnd;
+
+    LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    // Advance to the next line; returns false at the end of the stream
+    boolean next() throws IOException {
+        if (start == end) {
+            release(); // The previous line has been handled and nothing follows it yet
+            if (in.read(first, 0, 1) < 0) { // Block without a buffer until the next line begins
+                return false;
+            }
+            buffer = BufferPool.borrow(INITIAL_SIZE);
+            buffer[0] = first[0];
+            start = 0;
+            end = 1;
+        }
+        int scan = start;
+        while (true) {
+            for (int i = scan; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    lineStart = start;
+                    lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                    start = i + 1;
+                    return true;
+                }
+            }
+            scan = end - start; // Everything up to here has been searched, after compaction
+            if (start > 0) { // Move the partial line to the front
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            } else if (end == buffer.length) {
+                if (buffer.length >= MAX_LINE) {
+                    throw new IOException("Line longer than " + MAX_LINE + " bytes");
+                }
+                byte[] larger = BufferPool.borrow(Math.min(MAX_LINE, buffer.length * 2));
+                System.arraycopy(buffer, 0, larger, 0, end);
+                BufferPool.release(buffer);
+                buffer = larger;
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                if (end == start) {
+                    return false;
+                }
+                lineStart = start; // Last line without a terminator
+                lineEnd = end;
+                start = end;
+                return true;
+            }
+            end += read;
+        }
+    }
+
+    // Give the buffer back to the pool; pending input and the current line are discarded
+    void release() {
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+        start = end = lineStart = lineEnd = 0;
+    }
+
+    // Next line as a String, or null at the end of the stream
+    String readLine() throws IOException {
+        return next() ? string(0) : null;
+    }
+
+    // Length of the current line in bytes
+    int length() {
+        return lineEnd - lineStart;
+    }
+
+    // Whether the current line starts with an ASCII prefix
+    boolean startsWith(String prefix) {
+        return matches(0, prefix);
+    }
+
+    // Whether the bytes at an offset of the current line equal an ASCII string
+    boolean matches(int from, String ascii) {
+        if (from + ascii.length() > length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (buffer[lineStart + from + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether a slice of the current line is exactly an ASCII string
+    boolean equals(int from, int to, String ascii) {
+        return to - from == ascii.length() && matches(from, ascii);
+    }
+
+    // Offset of the first occurrence of an ASCII character at or after an offset, or the line length if there is none
+    int indexOf(char c, int from) {
+        for (int i = lineStart + from; i < lineEnd; i++) {
+            if (buffer[i] == c) {
+                return i - lineStart;
+            }
+        }
+        return length();
+    }
+
+    // Decode a slice of the current line
+    String string(int from, int to) {
+        return new String(buffer, lineStart + from, to - from, CHARSET);
+    }
+
+    // Decode the current line from an offset to its end
+    String string(int from) {
+        return string(from, length());
+    }
+
+    // Parse a decimal number from a slice of the current line without creating a String
+    long parseLong(int from, int to) {
+        if (from >= to || to - from > 18) {
+            throw new NumberFormatException("Not a number");
+        }
+        long value = 0;
+        for (int i = lineStart + from; i < lineStart + to; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// Embedded message store: every room message is appended to a log when it is sent, so history survives a crash and
+// not only a drain; the newest messages are also held in memory for reads, and the log is compacted down to them
+class LogMessageStore implements MessageStore {
+    private static final int COMPACT_FACTOR = 4; // The log is rewritten once it holds this many times the kept messages
+
+    private final GroupCommitLog log; // Records of an 8-byte seq followed by the UTF-8 text, written in batches
+    private final int limit; // Messages kept
+    private final Consumer<Entry> evicted; // Told about every message that drops out
+    private final List<Entry> entries = new ArrayList<>(); // Newest messages in seq order
+    private long lastSeq; // Seq of the latest message
+    private int logged; // Records in the log, including evicted ones
+    private CompletableFuture<Long> lastWrite = CompletableFuture.completedFuture(0L); // Write of the latest message
+
+    LogMessageStore(File file, int limit, Consumer<Entry> evicted) throws IOException {
+        this.limit = limit;
+        this.evicted = evicted;
+        RecordLog records = new RecordLog(file, (offset, payload) -> {
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            Entry entry = new Entry(record.getLong(), new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8));
+            if (entry.seq > lastSeq) { // Seqs stay consecutive even if a record was written twice
+                entries.add(entry);
+                lastSeq = entry.seq;
+            }
+            logged++;
+        });
+        log = new GroupCommitLog(records, "history-log");
+        if (entries.size() > limit) {
+            entries.subList(0, entries.size() - limit).clear(); // Evicted before the log was last compacted
+        }
+    }
+
+    @Override
+    public synchronized long append(String text) {
+        Entry entry = new Entry(++lastSeq, text);
+        lastWrite = log.append(encode(entry)); // Written behind; a failure is reported by the log, the message is still delivered
+        logged++;
+        if (entries.size() >= limit) {
+            evicted.accept(entries.remove(0)); // Remove oldest message if limit is reached
+        }
+        entries.add(entry);
+        if (logged > COMPACT_FACTOR * Math.max(limit, 16)) {
+            compact();
+        }
+        return entry.seq;
+    }
+
+    // Rewrite the log with only the messages still kept
+    private void compact() {
+        List<byte[]> records = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            records.add(encode(entry));
+        }
+        log.rewrite(records); // Queued behind the pending appends, which it then replaces
+        logged = records.size();
+    }
+
+    @Override
+    public synchronized List<Entry> page(long after, long upTo, int limit) {
+        return MessageStore.page(entries, after, upTo, limit);
+    }
+
+    @Override
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized CompletableFuture<?> durable() {
+        return lastWrite; // Records are written in order, so this completes after all earlier ones
+    }
+
+    @Override
+    public synchronized void close() {
+        log.close(); // Writes and syncs what is still queued
+    }
+
+    private static byte[] encode(Entry entry) {
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + text.length).putLong(entry.seq).put(text).array();
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+// Embedded user store: each sign-up is a record appended to a log, found again through an in-memory index of offsets,
+// so a login costs one hash lookup and one positional read however many users are registered
+class LogUserStore implements UserStore {
+    private final RecordLog log; // "name\npassword" records
+    private final GroupCommitLog commit; // Writes sign-ups, so concurrent ones share a sync
+    private final Map<String, Long> index = new HashMap<>(); // Record offset per username, guarded by this
+
+    // Open the log, importing the users of the flat file the first time
+    LogUserStore(File file, File legacy) throws IOException {
+        log = new RecordLog(file, (offset, payload) -> index.put(decode(payload)[0], offset));
+        if (index.isEmpty() && legacy.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(legacy))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(":");
+                    if (parts.length == 2 && !index.containsKey(parts[0])) {
+                        index.put(parts[0], log.append(encode(parts[0], parts[1])));
+                    }
+                }
+            }
+            log.force();
+            EventLog.info("users-imported", "users", index.size(), "file", legacy.getAbsolutePath());
+        }
+        commit = new GroupCommitLog(log, "users-log");
+    }
+
+    @Override
+    public boolean validate(String username, String password) {
+        Long offset;
+        synchronized (this) {
+            offset = index.get(username);
+        }
+        if (offset == null || offset < 0) {
+            return false;
+        }
+        try {
+            return decode(log.read(offset))[1].equals(password); // Read outside the lock, records never change
+        } catch (IOException e) {
+            EventLog.error("users-read-failed", e, "user", username); // Print error if reading the log fails
+            return false;
+        }
+    }
+
+    // The user is only confirmed once the record is durable, so a crash cannot forget an account that was reported created
+    @Override
+    public boolean register(String username, String password) {
+        synchronized (this) {
+            if (index.containsKey(username)) {
+                EventLog.info("signup-exists", "user", username);
+                return false;
+            }
+            index.put(username, -1L); // Reserved while the record is written; validation fails until it is
+        }
+        try {
+            long offset = commit.append(encode(username, password)).join();
+            synchronized (this) {
+                index.put(username, offset);
+            }
+            EventLog.debug("user-stored", "user", username);
+            return true;
+        } catch (CompletionException e) {
+            EventLog.error("users-write-failed", e.getCause(), "user", username); // Print error if writing to the log fails
+            synchronized (this) {
+                index.remove(username);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        commit.close();
+    }
+
+    private static byte[] encode(String username, String password) {
+        return (username + "\n" + password).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String[] decode(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8).split("\n", 2);
+    }
+}
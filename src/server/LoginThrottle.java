@@ -0,0 +1,56 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Exponential backoff after failed logins, per username and address or per remote address
+class LoginThrottle {
+    private static final long BASE_DELAY_MS = 1000; // Wait after the first failure beyond the free ones
+    private static final long MAX_DELAY_MS = 5 * 60 * 1000; // Longest wait
+    private static final long FORGET_MS = 15 * 60 * 1000; // Failures older than this are forgotten
+
+    private final int freeFailures; // Failures allowed before any wait is imposed
+    private final Map<String, long[]> failures = new HashMap<>(); // {count, blockedUntil, lastFailure} per key
+
+    LoginThrottle(int freeFailures) {
+        this.freeFailures = freeFailures;
+    }
+
+    // How long the key still has to wait before its next attempt, 0 if it may try now
+    synchronized long blockedFor(String key) {
+        long[] entry = failures.get(key);
+        return entry == null ? 0 : Math.max(0, entry[1] - System.currentTimeMillis());
+    }
+
+    // Record a failed attempt, doubling the wait for every failure beyond the free ones
+    synchronized void failed(String key) {
+        long now = System.currentTimeMillis();
+        long[] entry = failures.computeIfAbsent(key, k -> new long[3]);
+        if (now - entry[2] > FORGET_MS) {
+            entry[0] = 0; // Old failures no longer count
+        }
+        entry[0]++;
+        entry[2] = now;
+        long excess = entry[0] - freeFailures;
+        if (excess > 0) {
+            entry[1] = now + Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(excess - 1, 20));
+        }
+    }
+
+    // Forget the failures of a key after a successful login
+    synchronized void succeeded(String key) {
+        failures.remove(key);
+    }
+
+    // Drop entries that no longer block anything, so the table does not grow with every address ever seen
+    synchronized void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator<long[]> it = failures.values().iterator(); it.hasNext(); ) {
+            long[] entry = it.next();
+            if (now - entry[2] > FORGET_MS && entry[1] < now) {
+                it.remove();
+            }
+        }
+    }
+}
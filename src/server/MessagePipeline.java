@@ -0,0 +1,141 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Ordered moderation stages a public message passes through between ingest and fan-out
+class MessagePipeline {
+    private static final long SLOW_STAGE_NANOS = Long.getLong("chat.filter.slowMicros", 1000) * 1000; // Stage time reported as slow
+
+    // What a stage decided about a message
+    enum Action { PASS, MODIFY, REJECT, QUARANTINE }
+
+    // A message on its way through the pipeline; stages may rewrite the text and leave notes for later stages
+    static class Message {
+        final String sender; // Username of the author
+        String text; // Current text, possibly rewritten by earlier stages
+        int links; // Number of links found, set by the link stage
+        String reason; // Why the message was rejected or quarantined
+
+        Message(String sender, String text) {
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    // Result of a stage
+    static class Verdict {
+        static final Verdict PASS = new Verdict(Action.PASS, null, null);
+
+        final Action action;
+        final String text; // Replacement text for MODIFY
+        final String reason; // Explanation for REJECT and QUARANTINE
+
+        private Verdict(Action action, String text, String reason) {
+            this.action = action;
+            this.text = text;
+            this.reason = reason;
+        }
+
+        static Verdict modify(String text) {
+            return new Verdict(Action.MODIFY, text, null);
+        }
+
+        static Verdict reject(String reason) {
+            return new Verdict(Action.REJECT, null, reason);
+        }
+
+        static Verdict quarantine(String reason) {
+            return new Verdict(Action.QUARANTINE, null, reason);
+        }
+    }
+
+    // One processing step; called concurrently from every client handler
+    interface Stage {
+        String name();
+
+        Verdict process(Message message);
+    }
+
+    // Timing and outcome counters of a stage, updated without locking
+    static class StageMetrics {
+        final String name;
+        final LongAdder calls = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final LongAdder modified = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder quarantined = new LongAdder();
+
+        StageMetrics(String name) {
+            this.name = name;
+        }
+
+        // One line summary: calls, mean and max time, outcomes
+        @Override
+        public String toString() {
+            long count = calls.sum();
+            long mean = count == 0 ? 0 : nanos.sum() / count;
+            return String.format("%-10s calls=%d mean=%.1fus max=%.1fus modified=%d rejected=%d quarantined=%d",
+                    name, count, mean / 1000.0, maxNanos.get() / 1000.0, modified.sum(), rejected.sum(), quarantined.sum());
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<StageMetrics> metrics = new ArrayList<>();
+
+    // Append a stage; stages run in the order they were added
+    MessagePipeline add(Stage stage) {
+        stages.add(stage);
+        metrics.add(new StageMetrics(stage.name()));
+        return this;
+    }
+
+    // Run the message through every stage until one rejects or quarantines it; the final text is left in the message
+    Action process(Message message) {
+        for (int i = 0; i < stages.size(); i++) {
+            StageMetrics stats = metrics.get(i);
+            long start = System.nanoTime();
+            Verdict verdict = stages.get(i).process(message);
+            long elapsed = System.nanoTime() - start;
+            stats.calls.increment();
+            stats.nanos.add(elapsed);
+            long max = stats.maxNanos.get();
+            while (elapsed > max && !stats.maxNanos.compareAndSet(max, elapsed)) {
+                max = stats.maxNanos.get();
+            }
+            if (elapsed > SLOW_STAGE_NANOS && elapsed > max) { // New worst case, report it straight away
+                EventLog.warn("slow-filter-stage", "stage", stats.name, "us", elapsed / 1000);
+            }
+            switch (verdict.action) {
+                case MODIFY:
+                    stats.modified.increment();
+                    message.text = verdict.text;
+                    break;
+                case REJECT:
+                    stats.rejected.increment();
+                    message.reason = verdict.reason;
+                    return Action.REJECT;
+                case QUARANTINE:
+                    stats.quarantined.increment();
+                    message.reason = verdict.reason;
+                    return Action.QUARANTINE;
+                default:
+                    break;
+            }
+        }
+        return Action.PASS;
+    }
+
+    // Current counters of every stage, in pipeline order
+    List<StageMetrics> metrics() {
+        return metrics;
+    }
+
+    // Number of messages that entered the pipeline
+    long processed() {
+        return metrics.isEmpty() ? 0 : metrics.get(0).calls.sum();
+    }
+}
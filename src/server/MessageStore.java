@@ -0,0 +1,70 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// Room messages with consecutive seqs, bounded to the newest ones
+interface MessageStore {
+    // A room message together with its sequence number
+    class Entry {
+        final long seq; // Position in the room conversation
+        final String text; // Message as broadcast
+
+        Entry(long seq, String text) {
+            this.seq = seq;
+            this.text = text;
+        }
+    }
+
+    // Store a message under the next seq and return that seq; the oldest message is evicted beyond the limit
+    long append(String text);
+
+    // Up to limit messages after a seq and no later than upTo, oldest first
+    List<Entry> page(long after, long upTo, int limit);
+
+    // Completes once every message appended so far is durable
+    CompletableFuture<?> durable();
+
+    // Seq of the latest message, 0 if there was none
+    long lastSeq();
+
+    // Number of messages kept
+    int size();
+
+    // Flush and release the storage
+    void close();
+
+    // The store chosen with chat.store: "file" saves history.txt when the server drains, "log" appends every message
+    // to an embedded log as it is sent; evicted is called for every message that drops out
+    static MessageStore open(int limit, Consumer<Entry> evicted) {
+        if ("log".equals(System.getProperty("chat.store", "file"))) {
+            try {
+                return new LogMessageStore(new File("src/server/history.log"), limit, evicted);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Starting empty would reuse seqs clients have already seen
+            }
+        }
+        return new FlatFileMessageStore(new File("src/server/history.txt"), limit, evicted);
+    }
+
+    // Select a page from messages held in seq order
+    static List<Entry> page(List<Entry> entries, long after, long upTo, int limit) {
+        List<Entry> page = new ArrayList<>(Math.min(limit, entries.size()));
+        if (!entries.isEmpty()) {
+            int index = (int) Math.min(entries.size(), Math.max(0, after + 1 - entries.get(0).seq)); // Seqs in the list are consecutive
+            for (int i = index; i < entries.size() && page.size() < limit; i++) {
+                Entry entry = entries.get(i);
+                if (entry.seq > upTo) {
+                    break;
+                }
+                page.add(entry);
+            }
+        }
+        return page;
+    }
+}
@@ -0,0 +1,183 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The moderation stages used for public messages, and the pipeline built from them
+class ModerationStages {
+    private static final int MAX_LENGTH = Integer.getInteger("chat.message.max", 2000); // Longest accepted message in characters
+    private static final int MAX_LINKS = Integer.getInteger("chat.filter.maxLinks", 3); // Links allowed in one message
+    private static final int SPAM_SCORE = Integer.getInteger("chat.filter.spamScore", 6); // Score at which a message is quarantined
+    private static final long SPAM_WINDOW_MS = 10_000; // Window over which message rate is scored
+    private static final int SPAM_BURST = 5; // Messages per window before the rate adds to the score
+
+    private ModerationStages() {
+    }
+
+    // Pipeline for public messages: length, blocked words, masked words, links, spam score
+    static MessagePipeline createDefault() {
+        MessagePipeline pipeline = new MessagePipeline().add(new LengthStage(MAX_LENGTH));
+        KeywordMatcher blocked = KeywordMatcher.load(System.getProperty("chat.filter.blocklist"));
+        if (blocked.size() > 0) {
+            pipeline.add(new KeywordStage("blocklist", blocked, false));
+        }
+        KeywordMatcher masked = KeywordMatcher.load(System.getProperty("chat.filter.masklist"));
+        if (masked.size() > 0) {
+            pipeline.add(new KeywordStage("masklist", masked, true));
+        }
+        return pipeline.add(new LinkStage(MAX_LINKS)).add(new SpamStage(SPAM_SCORE));
+    }
+
+    // Rejects messages that are too long
+    static class LengthStage implements MessagePipeline.Stage {
+        private final int maxLength;
+
+        LengthStage(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public String name() {
+            return "length";
+        }
+
+        @Override
+        public MessagePipeline.Verdict process(MessagePipeline.Message message) {
+            if (message.text.length() > maxLength) {
+                return MessagePipeline.Verdict.reject("Message is longer than " + maxLength + " characters.");
+            }
+            return MessagePipeline.Verdict.PASS;
+        }
+    }
+
+    // Rejects messages containing a listed word, or masks the words instead
+    static class KeywordStage implements MessagePipeline.Stage {
+        private final String name;
+        private final KeywordMatcher matcher;
+        private final boolean mask;
+
+        KeywordStage(String name, KeywordMatcher matcher, boolean mask) {
+            this.name = name;
+            this.matcher = matcher;
+            this.mask = mask;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public MessagePipeline.Verdict process(MessagePipeline.Message message) {
+            if (mask) {
+                String masked = matcher.mask(message.text);
+                return masked == message.text ? MessagePipeline.Verdict.PASS : MessagePipeline.Verdict.modify(masked);
+            }
+            if (matcher.matches(message.text)) {
+                return MessagePipeline.Verdict.reject("Message contains a blocked word.");
+            }
+            return MessagePipeline.Verdict.PASS;
+        }
+    }
+
+    // Counts links for the spam score and rejects messages with too many of them
+    static class LinkStage implements MessagePipeline.Stage {
+        private final int maxLinks;
+
+        LinkStage(int maxLinks) {
+            this.maxLinks = maxLinks;
+        }
+
+        @Override
+        public String name() {
+            return "links";
+        }
+
+        @Override
+        public MessagePipeline.Verdict process(MessagePipeline.Message message) {
+            String text = message.text;
+            int links = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if ((i == 0 || text.charAt(i - 1) == ' ') && (text.startsWith("http://", i) || text.startsWith("https://", i) || text.startsWith("www.", i))) {
+                    links++;
+                }
+            }
+            message.links = links;
+            if (links > maxLinks) {
+                return MessagePipeline.Verdict.reject("Message contains more than " + maxLinks + " links.");
+            }
+            return MessagePipeline.Verdict.PASS;
+        }
+    }
+
+    // Scores each message on sender rate, repetition, links and shouting; high scores are held for review
+    static class SpamStage implements MessagePipeline.Stage {
+        private final int threshold;
+        private final Map<String, SenderState> senders = new ConcurrentHashMap<>();
+
+        // Recent activity of one sender
+        private static class SenderState {
+            final long[] recent = new long[SPAM_BURST * 2]; // Ring of recent message times
+            int next; // Next slot in the ring
+            int hash; // Hash of the previous message
+            int repeats; // How many times in a row the same text was sent
+        }
+
+        SpamStage(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public String name() {
+            return "spam";
+        }
+
+        @Override
+        public MessagePipeline.Verdict process(MessagePipeline.Message message) {
+            SenderState state = senders.computeIfAbsent(message.sender, sender -> new SenderState());
+            long now = System.currentTimeMillis();
+            int score = message.links;
+            synchronized (state) {
+                state.recent[state.next] = now;
+                state.next = (state.next + 1) % state.recent.length;
+                int inWindow = 0;
+                for (long time : state.recent) {
+                    if (now - time < SPAM_WINDOW_MS) {
+                        inWindow++;
+                    }
+                }
+                score += Math.max(0, inWindow - SPAM_BURST);
+                int hash = message.text.hashCode();
+                state.repeats = hash == state.hash ? state.repeats + 1 : 0;
+                state.hash = hash;
+                score += state.repeats * 2;
+            }
+            if (isShouting(message.text)) {
+                score += 2;
+            }
+            if (score >= threshold) {
+                return MessagePipeline.Verdict.quarantine("Message looks like spam and is held for review.");
+            }
+            return MessagePipeline.Verdict.PASS;
+        }
+
+        // Long messages written mostly in capitals
+        private static boolean isShouting(String text) {
+            if (text.length() < 20) {
+                return false;
+            }
+            int upper = 0;
+            int letters = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (Character.isLetter(c)) {
+                    letters++;
+                    if (Character.isUpperCase(c)) {
+                        upper++;
+                    }
+                }
+            }
+            return letters > 0 && upper * 10 >= letters * 8;
+        }
+    }
+}
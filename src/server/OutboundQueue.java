@@ -0,0 +1,277 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// Lines waiting to be written to one client, drained by a task on the shared writer pool whenever there is something
+// to write; an idle connection holds no writer thread, so writer threads track connections with output in flight
+// Lines are queued in priority lanes and taken in weighted rounds, so interactive traffic overtakes a large backfill;
+// live room messages are the exception and stay behind the room history being replayed
+// A backfill is pulled a page at a time into the bulk lane as it drains, so a long backlog is never queued whole
+class OutboundQueue {
+    private static final int EPHEMERAL_LIMIT = Integer.getInteger("chat.ephemeral.limit", 32); // Backlog above which ephemeral events are dropped
+    private static final int BATCH_LIMIT = 256; // Lines taken per flush
+    private static final int WRITE_SIZE = 8192; // Pooled buffer a batch is encoded into
+    private static final Charset CHARSET = Charset.defaultCharset(); // Same encoding the reader side uses
+
+    // Traffic classes in priority order, each with the number of lines it may send per round
+    enum Lane {
+        CONTROL(64), // User lists, receipts, typing, replies to commands
+        PRIVATE(32), // Private messages
+        LIVE(16), // Public messages as they happen
+        BULK(4); // History replay and other backfill
+
+        final int weight;
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static final Lane[] LANES = Lane.values();
+    private static final ThreadPoolExecutor writers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "writer");
+                thread.setDaemon(true);
+                return thread;
+            }); // Grows with the queues being drained at once, never queues a drain behind a client stalled in a write
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Created raw, the constructor fills each lane with a typed deque
+    private final ArrayDeque<String>[] lanes = new ArrayDeque[LANES.length]; // Lines not yet written, per lane
+    private int size; // Lines in all lanes
+    private boolean closed; // Set once the connection is gone
+    private boolean writing; // True while the writer is writing a batch it has taken off the queue
+    private boolean scheduled; // True while a drain task owns the queue, so at most one writes to the socket
+    private OutputStream out; // Client stream, null until start
+    private String name; // Writer thread name while draining this queue
+    private BooleanSupplier backfill; // Queues the next page of a backlog, returns false once it is exhausted; null if none
+    private volatile long written; // Lines written to the socket, only updated by the task draining the queue
+    private volatile long writeStarted; // System.nanoTime() when the batch being written was taken, 0 between batches
+
+    OutboundQueue() {
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    // Queue a line that must be delivered
+    synchronized void add(Lane lane, String line) {
+        if (!closed) {
+            lanes[lane.ordinal()].add(line);
+            size++;
+            schedule();
+        }
+    }
+
+    // Queue a control event that may be dropped, such as a typing indicator, unless the client is already behind
+    synchronized boolean addEphemeral(String line) {
+        if (closed || size >= EPHEMERAL_LIMIT) {
+            return false; // A slow client loses transient events first
+        }
+        add(Lane.CONTROL, line);
+        return true;
+    }
+
+    // Stream a backlog through the bulk lane; pages is called by the writer whenever the lane is empty
+    // and must queue at least one line or return false
+    synchronized void backfill(BooleanSupplier pages) {
+        if (!closed) {
+            backfill = pages;
+            schedule(); // The writer pulls the first page
+        }
+    }
+
+    // Number of lines waiting to be written
+    synchronized int size() {
+        return size;
+    }
+
+    // Number of lines waiting in one lane
+    synchronized int size(Lane lane) {
+        return lanes[lane.ordinal()].size();
+    }
+
+    // Lines waiting in each lane, in lane order, read under one brief hold of the lock; the writer never holds it while writing
+    synchronized int[] depths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].size();
+        }
+        return depths;
+    }
+
+    // Lines written so far
+    long written() {
+        return written;
+    }
+
+    // How long the writer has been inside the current socket write, 0 if it is not writing; large values mean a stalled client
+    long writingForMs() {
+        long started = writeStarted;
+        return started == 0 ? 0 : (System.nanoTime() - started) / 1_000_000;
+    }
+
+    // Wait until every queued line and any pending backfill has been written, or the timeout passes; returns whether
+    // the queue was flushed
+    synchronized boolean awaitFlushed(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while ((size > 0 || writing || backfill != null) && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return size == 0 && !writing && backfill == null;
+    }
+
+    // Stop accepting lines and let the writer finish
+    synchronized void close() {
+        closed = true;
+        for (ArrayDeque<String> lane : lanes) {
+            lane.clear();
+        }
+        size = 0;
+        backfill = null;
+        notifyAll();
+    }
+
+    // Move lines into the batch in weighted rounds: every lane gets its share per round, higher lanes first. Live room
+    // messages wait while a backfill is replaying, so clients, which show room lines in arrival order, get the older
+    // history first; control and private lines still overtake the replay
+    private void take(List<String> batch) {
+        boolean replaying = backfill != null || !lanes[Lane.BULK.ordinal()].isEmpty();
+        boolean taken = true;
+        while (taken && batch.size() < BATCH_LIMIT) {
+            taken = false;
+            for (int i = 0; i < lanes.length; i++) {
+                if (replaying && LANES[i] == Lane.LIVE) {
+                    continue;
+                }
+                for (int n = 0; n < LANES[i].weight && !lanes[i].isEmpty(); n++) {
+                    batch.add(lanes[i].poll());
+                    size--;
+                    taken = true;
+                }
+            }
+        }
+    }
+
+    // Start writing queued lines to the stream; lines queued before are written first
+    synchronized void start(OutputStream out, String name) {
+        this.out = out;
+        this.name = name;
+        schedule();
+    }
+
+    // Writer threads in the shared pool and how many are draining a queue, for the status report
+    static String report() {
+        return "threads=" + writers.getPoolSize() + " active=" + writers.getActiveCount() + " peak=" + writers.getLargestPoolSize();
+    }
+
+    // Hand the queue to a writer task if it has something to write and no task owns it yet; called with the lock held
+    private void schedule() {
+        if (!scheduled && out != null && !closed && (size > 0 || backfill != null)) {
+            scheduled = true;
+            writers.execute(this::drain);
+        }
+    }
+
+    // Write batches until the queue is empty, encoding each into a pooled buffer that is returned once it is written,
+    // then give the thread back to the pool; the next add schedules a new task
+    private void drain() {
+        Thread thread = Thread.currentThread();
+        thread.setName(name); // Shows whose output a stalled writer holds in thread dumps and log lines
+        List<String> batch = new ArrayList<>();
+        try {
+            while (true) {
+                BooleanSupplier refill = null;
+                synchronized (this) {
+                    if (closed || (size == 0 && backfill == null)) {
+                        scheduled = false;
+                        notifyAll(); // A backlog may have ended without a last write
+                        return;
+                    }
+                    if (backfill != null && lanes[Lane.BULK.ordinal()].isEmpty()) {
+                        refill = backfill;
+                    }
+                }
+                if (refill != null && !refill.getAsBoolean()) { // Pulled without holding the queue's lock, pages queue through add
+                    synchronized (this) {
+                        if (backfill == refill) {
+                            backfill = null; // Backlog exhausted
+                        }
+                    }
+                }
+                synchronized (this) {
+                    take(batch);
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                    writing = true;
+                }
+                boolean failed = false;
+                writeStarted = System.nanoTime();
+                try {
+                    write(out, batch);
+                    written += batch.size(); // Only the task owning the queue updates it
+                } catch (IOException e) {
+                    failed = true;
+                }
+                writeStarted = 0;
+                batch.clear();
+                synchronized (this) {
+                    writing = false;
+                    notifyAll(); // Wake anyone waiting for the queue to be flushed
+                }
+                if (failed) {
+                    close(); // Connection is broken, the reader side cleans up
+                }
+            }
+        } finally {
+            thread.setName("writer");
+        }
+    }
+
+    // Write lines straight to a stream, borrowing a buffer only for the duration of the call
+    static void write(OutputStream out, List<String> lines) throws IOException {
+        byte[] buffer = BufferPool.borrow(WRITE_SIZE);
+        try {
+            int length = 0;
+            for (String line : lines) {
+                length = append(out, buffer, length, line);
+            }
+            out.write(buffer, 0, length);
+            out.flush();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    // Encode a line and its terminator into the buffer, writing the buffer out whenever it fills; returns the bytes left in it
+    private static int append(OutputStream out, byte[] buffer, int length, String line) throws IOException {
+        int chars = line.length();
+        boolean ascii = true;
+        for (int i = 0; i < chars && ascii; i++) {
+            ascii = line.charAt(i) < 0x80;
+        }
+        byte[] encoded = ascii ? null : line.getBytes(CHARSET); // Most lines are plain ASCII and are copied without encoding
+        int total = ascii ? chars : encoded.length;
+        for (int i = 0; i <= total; i++) {
+            if (length == buffer.length) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+            buffer[length++] = i == total ? (byte) '\n' : ascii ? (byte) line.charAt(i) : encoded[i];
+        }
+        return length;
+    }
+}
@@ -0,0 +1,229 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Private conversations kept on disk: every conversation appends to the same segment files, and each one keeps a compact
+// index of where its messages are, so reading a conversation never scans other users' traffic
+class PrivateHistoryStore {
+    private static final long SEGMENT_BYTES = Long.getLong("chat.private.segmentBytes", 16L * 1024 * 1024); // Size at which a new segment is started
+    private static final int MAX_SEGMENTS = Integer.getInteger("chat.private.segments", 64); // Oldest segments are deleted beyond this
+    private static final int OFFSET_BITS = 40; // Index entry: segment number in the high bits, byte offset in the low bits
+    private static final long MISSING = (1L << OFFSET_BITS) - 1; // Offset of a message that could not be written
+    private static final int PREFIX_BYTES = 16; // Record payload: seq, time, then the body; framed and checksummed by RecordLog
+
+    private final File directory; // Directory holding the segment files
+    private final Map<String, Conversation> conversations = new HashMap<>(); // Index per pair of users
+    private final TreeMap<Integer, RecordLog> segments = new TreeMap<>(); // Open segments by number, oldest first
+    private int segment = -1; // Number of the newest segment, -1 until the first one exists
+
+    // Index of one conversation: entries[i] locates the message with seq firstSeq + i
+    private static class Conversation {
+        long firstSeq = 1; // Seq of the oldest message still stored
+        long[] entries = new long[4];
+        int count;
+
+        long lastSeq() {
+            return firstSeq + count - 1;
+        }
+
+        void add(long entry) {
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count * 2);
+            }
+            entries[count++] = entry;
+        }
+    }
+
+    // A stored private message
+    static class Entry {
+        final long seq; // Position in the conversation
+        final long time; // When the server received it
+        final String sender; // Username of the author
+        final String text; // Message as typed
+
+        Entry(long seq, long time, String sender, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    PrivateHistoryStore(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            EventLog.warn("mkdir-failed", "dir", directory.getAbsolutePath());
+        }
+        String[] names = directory.list((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        int[] numbers = new int[names != null ? names.length : 0];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = Integer.parseInt(names[i].substring(8, names[i].length() - 4));
+        }
+        Arrays.sort(numbers);
+        for (int number : numbers) { // Rebuild the indexes from the segments written by earlier runs
+            try {
+                segments.put(number, new RecordLog(file(number), (offset, payload) -> index(number, offset, payload)));
+                segment = number;
+            } catch (IOException e) {
+                EventLog.error("segment-read-failed", e, "file", file(number)); // Run without its messages
+            }
+        }
+    }
+
+    // Add a record read from a segment to its conversation's index; RecordLog has already cut off a damaged tail
+    private void index(int number, long offset, byte[] payload) {
+        ByteBuffer record = ByteBuffer.wrap(payload);
+        long seq = record.getLong();
+        String key = new String(payload, PREFIX_BYTES, indexOf(payload, (byte) '\n', PREFIX_BYTES) - PREFIX_BYTES, StandardCharsets.UTF_8);
+        Conversation conversation = conversations.computeIfAbsent(key, k -> new Conversation());
+        if (conversation.count == 0) {
+            conversation.firstSeq = seq; // Older messages were in a deleted segment
+        }
+        if (seq == conversation.lastSeq() + 1) {
+            conversation.add(entry(number, offset));
+        }
+    }
+
+    // Store a private message and return its seq in the conversation; a failed write still consumes the seq
+    synchronized long append(String user, String otherUser, String sender, String text) {
+        String key = key(user, otherUser);
+        Conversation conversation = conversations.computeIfAbsent(key, k -> new Conversation());
+        long seq = conversation.lastSeq() + 1;
+        long time = System.currentTimeMillis();
+        byte[] body = (key + "\n" + sender + "\n" + text).getBytes(StandardCharsets.UTF_8);
+        try {
+            if (segment < 0 || segments.get(segment).size() >= SEGMENT_BYTES) {
+                roll();
+            }
+            byte[] payload = ByteBuffer.allocate(PREFIX_BYTES + body.length).putLong(seq).putLong(time).put(body).array();
+            conversation.add(entry(segment, segments.get(segment).append(payload))); // Written straight to the file, readers see it
+        } catch (IOException e) {
+            EventLog.error("segment-write-failed", e, "segment", segment); // The message is still delivered, it just cannot be fetched later
+            conversation.add(entry(segment, MISSING));
+        }
+        return seq;
+    }
+
+    // Seq of the latest message between two users, 0 if they never exchanged one
+    synchronized long lastSeq(String user, String otherUser) {
+        Conversation conversation = conversations.get(key(user, otherUser));
+        return conversation == null ? 0 : conversation.lastSeq();
+    }
+
+    // Up to limit messages of a conversation before a seq, or the newest ones if beforeSeq is 0; oldest first
+    List<Entry> page(String user, String otherUser, int limit, long beforeSeq) {
+        long[] entries;
+        Map<Integer, RecordLog> logs;
+        synchronized (this) { // Only the index is read under the lock, the records are read by the caller's thread
+            Conversation conversation = conversations.get(key(user, otherUser));
+            if (conversation == null || limit <= 0) {
+                return new ArrayList<>();
+            }
+            long last = beforeSeq > 0 ? Math.min(beforeSeq - 1, conversation.lastSeq()) : conversation.lastSeq();
+            long first = Math.max(conversation.firstSeq, last - limit + 1);
+            if (last < first) {
+                return new ArrayList<>();
+            }
+            int from = (int) (first - conversation.firstSeq);
+            entries = Arrays.copyOfRange(conversation.entries, from, from + (int) (last - first + 1));
+            logs = new HashMap<>(segments);
+        }
+        List<Entry> page = new ArrayList<>(entries.length);
+        try {
+            for (long entry : entries) {
+                RecordLog log = logs.get((int) (entry >>> OFFSET_BITS));
+                long offset = entry & MISSING;
+                if (offset == MISSING || log == null) {
+                    continue;
+                }
+                byte[] payload = log.read(offset); // Positional read, safe next to appends
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                long seq = record.getLong();
+                long time = record.getLong();
+                int senderStart = indexOf(payload, (byte) '\n', PREFIX_BYTES) + 1;
+                int textStart = indexOf(payload, (byte) '\n', senderStart) + 1;
+                page.add(new Entry(seq, time, new String(payload, senderStart, textStart - 1 - senderStart, StandardCharsets.UTF_8),
+                        new String(payload, textStart, payload.length - textStart, StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            EventLog.error("segment-read-failed", e, "user", user); // The segment was deleted meanwhile, return what was read
+        }
+        return page;
+    }
+
+    // Close the segments
+    synchronized void close() {
+        for (Map.Entry<Integer, RecordLog> open : segments.entrySet()) {
+            try {
+                open.getValue().close();
+            } catch (IOException e) {
+                EventLog.error("segment-close-failed", e, "segment", open.getKey());
+            }
+        }
+        segments.clear();
+    }
+
+    // Start a new segment, the first one or after the current one filled up, and delete the oldest beyond the limit
+    private void roll() throws IOException {
+        segment++;
+        segments.put(segment, new RecordLog(file(segment), (offset, payload) -> index(segment, offset, payload)));
+        while (segments.size() > MAX_SEGMENTS) {
+            deleteOldest();
+        }
+    }
+
+    // Delete the oldest segment and drop the index entries that point into it
+    private void deleteOldest() {
+        Map.Entry<Integer, RecordLog> first = segments.pollFirstEntry();
+        int oldest = first.getKey();
+        try {
+            first.getValue().close(); // A page being read from it stops with what it has
+        } catch (IOException e) {
+            EventLog.error("segment-close-failed", e, "segment", oldest);
+        }
+        for (Conversation conversation : conversations.values()) {
+            int dropped = 0;
+            while (dropped < conversation.count && (conversation.entries[dropped] >>> OFFSET_BITS) <= oldest) {
+                dropped++;
+            }
+            if (dropped > 0) { // The conversation keeps its seqs, only its oldest messages are gone
+                System.arraycopy(conversation.entries, dropped, conversation.entries, 0, conversation.count - dropped);
+                conversation.count -= dropped;
+                conversation.firstSeq += dropped;
+            }
+        }
+        if (!file(oldest).delete()) {
+            EventLog.warn("segment-delete-failed", "file", file(oldest).getAbsolutePath());
+        }
+    }
+
+    private File file(int number) {
+        return new File(directory, String.format("segment-%06d.log", number));
+    }
+
+    // Conversation key of a pair of users, the same whichever of them asks
+    private static String key(String user, String otherUser) {
+        return user.compareTo(otherUser) < 0 ? user + "\0" + otherUser : otherUser + "\0" + user;
+    }
+
+    private static long entry(int number, long offset) {
+        return ((long) number << OFFSET_BITS) | offset;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return bytes.length;
+    }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Merges cumulative "delivered/read up to seq N" acknowledgements and turns them into periodic, compact updates for senders
+class ReceiptTracker {
+    private final Map<String, Integer> ids = new HashMap<>(); // Dense index per username
+    private String[] names = new String[64]; // Username per index
+    private int users; // Number of indexes handed out
+
+    // Room state, one slot per user index
+    private long[] roomDelivered = new long[64]; // Highest room seq delivered to each user
+    private long[] roomRead = new long[64]; // Highest room seq read by each user
+    private long[] roomLastSent = new long[64]; // Seq of each user's latest room message
+    private int[] reportedDelivered = new int[64]; // Delivered count last reported to each sender
+    private int[] reportedRead = new int[64]; // Read count last reported to each sender
+    private boolean roomDirty; // Whether anything changed since the last flush
+
+    // Private state: {delivered, read} per sender, per reader; a reader's entries are dropped when its session ends
+    private final Map<String, Map<String, long[]>> privateAcks = new HashMap<>();
+    private final Map<String, long[]> dirtyPrivate = new LinkedHashMap<>(); // Entries changed since the last flush
+
+    // One update to send: the recipient and the protocol line
+    static class Update {
+        final String recipient;
+        final String line;
+
+        Update(String recipient, String line) {
+            this.recipient = recipient;
+            this.line = line;
+        }
+    }
+
+    // Index of a user, assigned on first use
+    private int id(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = users++;
+            if (id == names.length) { // Grow every per-user array together
+                int size = names.length * 2;
+                names = Arrays.copyOf(names, size);
+                roomDelivered = Arrays.copyOf(roomDelivered, size);
+                roomRead = Arrays.copyOf(roomRead, size);
+                roomLastSent = Arrays.copyOf(roomLastSent, size);
+                reportedDelivered = Arrays.copyOf(reportedDelivered, size);
+                reportedRead = Arrays.copyOf(reportedRead, size);
+            }
+            names[id] = name;
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    // A user posted a room message with the given seq
+    synchronized void roomMessageSent(String sender, long seq) {
+        int id = id(sender);
+        roomLastSent[id] = seq;
+        reportedDelivered[id] = 0; // Counts start over for the new message
+        reportedRead[id] = 0;
+        roomDelivered[id] = Math.max(roomDelivered[id], seq); // A sender has its own message
+        roomRead[id] = Math.max(roomRead[id], seq);
+        roomDirty = true;
+    }
+
+    // Merge a cumulative room acknowledgement
+    synchronized void roomAck(String reader, long delivered, long read) {
+        int id = id(reader);
+        if (delivered > roomDelivered[id] || read > roomRead[id]) {
+            roomDelivered[id] = Math.max(roomDelivered[id], delivered);
+            roomRead[id] = Math.max(roomRead[id], read);
+            roomDirty = true;
+        }
+    }
+
+    // Merge a cumulative acknowledgement for a private conversation
+    // The caller checks that the conversation exists, so the entries stay bounded by real conversations
+    synchronized void privateAck(String reader, String sender, long delivered, long read) {
+        long[] acks = privateAcks.computeIfAbsent(reader, k -> new HashMap<>()).computeIfAbsent(sender, k -> new long[2]);
+        if (delivered > acks[0] || read > acks[1]) {
+            acks[0] = Math.max(acks[0], delivered);
+            acks[1] = Math.max(acks[1], read);
+            dirtyPrivate.put(reader + "\0" + sender, acks);
+        }
+    }
+
+    // Drop the private acknowledgements of a reader whose session ended; it acks cumulatively again after logging in.
+    // Changes not yet flushed are still reported to their senders
+    synchronized void forget(String reader) {
+        privateAcks.remove(reader);
+    }
+
+    // Collect the updates for every sender whose receipts changed since the last flush
+    synchronized List<Update> flush() {
+        List<Update> updates = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : dirtyPrivate.entrySet()) {
+            String[] pair = entry.getKey().split("\0");
+            long[] acks = entry.getValue();
+            updates.add(new Update(pair[1], "/receipt " + pair[0] + " " + acks[0] + " " + acks[1]));
+        }
+        dirtyPrivate.clear();
+        if (roomDirty) {
+            roomDirty = false;
+            long[] delivered = Arrays.copyOf(roomDelivered, users);
+            long[] read = Arrays.copyOf(roomRead, users);
+            Arrays.sort(delivered); // Sorted once, so each sender's count is a binary search
+            Arrays.sort(read);
+            for (int id = 0; id < users; id++) {
+                long seq = roomLastSent[id];
+                if (seq == 0) {
+                    continue; // Never posted in the room
+                }
+                int deliveredCount = countAtLeast(delivered, seq) - 1; // The sender itself is not counted
+                int readCount = countAtLeast(read, seq) - 1;
+                if (deliveredCount != reportedDelivered[id] || readCount != reportedRead[id]) {
+                    reportedDelivered[id] = deliveredCount;
+                    reportedRead[id] = readCount;
+                    updates.add(new Update(names[id], "/receipt * " + seq + " " + deliveredCount + " " + readCount));
+                }
+            }
+        }
+        return updates;
+    }
+
+    // Number of values in a sorted array that are at least the given seq
+    private static int countAtLeast(long[] sorted, long seq) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return sorted.length - low;
+    }
+}
@@ -0,0 +1,156 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only file of checksummed records addressed by their offset; the storage under the embedded user and message stores
+class RecordLog implements Closeable {
+    private static final int HEADER_BYTES = 8; // Record: payload length, CRC32 of the payload, then the payload
+    private static final int MAX_RECORD = 1024 * 1024; // Larger lengths can only come from a damaged header
+
+    // Receives every intact record while a log is opened
+    interface Visitor {
+        void record(long offset, byte[] payload) throws IOException;
+    }
+
+    private final File file;
+    private volatile FileChannel channel; // Replaced when the log is rewritten
+    private long end; // Offset the next record is written at
+
+    // Open or create a log, passing its records to the visitor; a torn record at the end, left by a crash, is cut off
+    RecordLog(File file, Visitor visitor) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = scan(visitor);
+        if (end < channel.size()) {
+            EventLog.warn("log-truncated", "bytes", channel.size() - end, "file", file.getAbsolutePath());
+            channel.truncate(end);
+        }
+    }
+
+    // Read records from the start until the end of the file or the first damaged one; returns the end of the intact part
+    private long scan(Visitor visitor) throws IOException {
+        long offset = 0;
+        long fileLength = file.length();
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD || length > fileLength - offset - HEADER_BYTES) {
+                    return offset; // A damaged or torn header, never allocate what it claims
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return offset; // Only partly written
+                }
+                visitor.record(offset, payload);
+                offset += HEADER_BYTES + length;
+            }
+        } catch (EOFException e) {
+            return offset; // End of the log, possibly inside a record cut short
+        }
+    }
+
+    // Append a record and return its offset
+    synchronized long append(byte[] payload) throws IOException {
+        long offset = end;
+        ByteBuffer record = encode(payload);
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        end += record.limit();
+        return offset;
+    }
+
+    // Append records with a single write; returns the offset of each
+    synchronized long[] appendAll(List<byte[]> payloads) throws IOException {
+        int length = 0;
+        for (byte[] payload : payloads) {
+            length += HEADER_BYTES + payload.length;
+        }
+        ByteBuffer records = ByteBuffer.allocate(length);
+        long[] offsets = new long[payloads.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = end + records.position();
+            records.put(encode(payloads.get(i)));
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            channel.write(records, end + records.position());
+        }
+        end += length;
+        return offsets;
+    }
+
+    // Make everything appended so far durable
+    synchronized void force() throws IOException {
+        channel.force(false); // Like fdatasync: a grown file length is still recorded, other metadata is skipped
+    }
+
+    // Read the record at an offset; safe to call while other threads append
+    byte[] read(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(header, offset);
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+        readFully(payload, offset + HEADER_BYTES);
+        return payload.array();
+    }
+
+    // Replace the whole log with the given records, written to a new file that is then moved over the old one
+    synchronized void rewrite(List<byte[]> records) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        long length = 0;
+        try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (byte[] payload : records) {
+                ByteBuffer record = encode(payload);
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+                length += record.limit();
+            }
+            out.force(true); // The new file must be complete before it replaces the old one
+        }
+        channel.close();
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = length;
+    }
+
+    // Bytes in the log
+    synchronized long size() {
+        return end;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Record at " + offset + " is cut short");
+            }
+        }
+    }
+
+    private static ByteBuffer encode(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        record.flip();
+        return record;
+    }
+}
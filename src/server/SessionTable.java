@@ -0,0 +1,147 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Online sessions indexed by a compact integer id; fan-out walks a plain array instead of a map, names are looked up once per session
+class SessionTable<H> {
+    private int[] slots = new int[128]; // Open-addressed name index, only used to resolve names from the wire: session id + 1, 0 if free
+    private Object[] handlers = new Object[64]; // Handler per session id, null for free ids
+    private String[] names = new String[64]; // Username per session id, the same instance the handler uses
+    private int[] freeIds = new int[16]; // Ids of closed sessions, reused before new ones are handed out
+    private int freeCount; // Number of reusable ids
+    private int highWater; // One past the largest id handed out
+    private int count; // Online sessions
+    private String userList; // Cached "/users ..." line, rebuilt after a change
+
+    // Add a session, replacing an older session of the same user; returns its id
+    synchronized int register(String name, H handler) {
+        int slot = slot(name);
+        int id;
+        if (slots[slot] != 0) {
+            id = slots[slot] - 1; // The user logged in again before the old session was cleaned up
+        } else {
+            id = freeCount > 0 ? freeIds[--freeCount] : highWater++;
+            if (id == handlers.length) {
+                handlers = Arrays.copyOf(handlers, id * 2);
+                names = Arrays.copyOf(names, id * 2);
+            }
+            names[id] = name;
+            slots[slot] = id + 1;
+            count++;
+            if (count * 2 > slots.length) {
+                rehash(slots.length * 2);
+            }
+        }
+        handlers[id] = handler;
+        names[id] = name;
+        userList = null;
+        return id;
+    }
+
+    // Remove a session unless it was already replaced by a newer one; returns whether it was removed
+    synchronized boolean unregister(int id, H handler) {
+        if (id < 0 || id >= highWater || handlers[id] != handler) {
+            return false;
+        }
+        remove(slot(names[id]));
+        handlers[id] = null;
+        names[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        count--;
+        userList = null;
+        return true;
+    }
+
+    // Handler of an online user, or null
+    @SuppressWarnings("unchecked")
+    synchronized H get(String name) {
+        int entry = slots[slot(name)];
+        return entry == 0 ? null : (H) handlers[entry - 1];
+    }
+
+    // Run an action for every online session, in id order
+    @SuppressWarnings("unchecked")
+    synchronized void forEach(Consumer<H> action) {
+        for (int id = 0; id < highWater; id++) {
+            Object handler = handlers[id];
+            if (handler != null) {
+                action.accept((H) handler);
+            }
+        }
+    }
+
+    // Copy of the online handlers, for work that must not hold the table's lock
+    @SuppressWarnings("unchecked")
+    synchronized List<H> handlers() {
+        List<H> list = new ArrayList<>(count);
+        for (int id = 0; id < highWater; id++) {
+            if (handlers[id] != null) {
+                list.add((H) handlers[id]);
+            }
+        }
+        return list;
+    }
+
+    // The "/users name name ..." line, built once per change of the online set
+    synchronized String userList() {
+        if (userList == null) {
+            StringBuilder line = new StringBuilder("/users"); // Command to indicate user list update
+            for (int id = 0; id < highWater; id++) {
+                if (names[id] != null) {
+                    line.append(' ').append(names[id]);
+                }
+            }
+            userList = line.toString();
+        }
+        return userList;
+    }
+
+    // Number of online sessions
+    synchronized int size() {
+        return count;
+    }
+
+    // Slot holding a name, or the free slot where it would go; linear probing from the name's hash
+    private int slot(String name) {
+        int mask = slots.length - 1;
+        for (int slot = home(name, mask); ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0 || names[entry - 1].equals(name)) {
+                return slot;
+            }
+        }
+    }
+
+    // Free a slot, moving later entries of its probe run back so every name stays reachable from its home slot
+    private void remove(int hole) {
+        int mask = slots.length - 1;
+        for (int slot = (hole + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int home = home(names[slots[slot] - 1], mask);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) { // Its home is not between the hole and here
+                slots[hole] = slots[slot];
+                hole = slot;
+            }
+        }
+        slots[hole] = 0;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int id = 0; id < highWater; id++) {
+            if (names[id] != null) {
+                slots[slot(names[id])] = id + 1;
+            }
+        }
+    }
+
+    private static int home(String name, int mask) {
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & mask; // Spread the high bits like HashMap does
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Online sessions partitioned by username into shards, each with its own table lock and one thread that performs the
+// fan-out to its sessions; a broadcast is posted to every shard, so delivery runs in parallel and no lock spans all clients
+class ShardedSessions<H> {
+    private final SessionTable<H>[] tables; // Sessions of each shard
+    private final ExecutorService[] loops; // Fan-out thread of each shard
+
+    ShardedSessions(int count) {
+        @SuppressWarnings({"unchecked", "rawtypes"}) // No generic array creation; the loop below stores only SessionTable<H>
+        SessionTable<H>[] created = new SessionTable[count];
+        tables = created;
+        loops = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            tables[i] = new SessionTable<>();
+            String name = "shard-" + i;
+            loops[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Shard owning a username
+    private int shard(String name) {
+        return (name.hashCode() & 0x7fffffff) % tables.length;
+    }
+
+    // Add a session to its user's shard; returns its id within that shard
+    int register(String name, H handler) {
+        return tables[shard(name)].register(name, handler);
+    }
+
+    // Remove a session unless it was already replaced by a newer one; returns whether it was removed
+    boolean unregister(String name, int id, H handler) {
+        return name != null && tables[shard(name)].unregister(id, handler);
+    }
+
+    // Handler of an online user, or null; only that user's shard is locked
+    H get(String name) {
+        return tables[shard(name)].get(name);
+    }
+
+    // Run an action for every online session on the shard threads; tasks posted by one thread, or under one lock,
+    // reach every session in the order they were posted
+    void broadcast(Consumer<H> action) {
+        for (int i = 0; i < tables.length; i++) {
+            SessionTable<H> table = tables[i];
+            loops[i].execute(() -> table.forEach(action));
+        }
+    }
+
+    // Copy of the online handlers of all shards
+    List<H> handlers() {
+        List<H> list = new ArrayList<>();
+        for (SessionTable<H> table : tables) {
+            list.addAll(table.handlers());
+        }
+        return list;
+    }
+
+    // The "/users name name ..." line over all shards, joined from the lines each shard caches
+    String userList() {
+        StringBuilder line = new StringBuilder("/users");
+        for (SessionTable<H> table : tables) {
+            String users = table.userList();
+            line.append(users, 6, users.length()); // Without the shard's own "/users" prefix
+        }
+        return line.toString();
+    }
+
+    // Number of online sessions
+    int size() {
+        int size = 0;
+        for (SessionTable<H> table : tables) {
+            size += table.size();
+        }
+        return size;
+    }
+
+    // Stop the shard threads once the tasks already posted have run; returns whether they finished within the timeout
+    boolean shutdown(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (ExecutorService loop : loops) {
+            loop.shutdown();
+        }
+        for (ExecutorService loop : loops) {
+            if (!loop.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Number of shards
+    int shards() {
+        return tables.length;
+    }
+}
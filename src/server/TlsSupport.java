@@ -0,0 +1,111 @@
+package server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// TLS for the chat port: the listening socket, session resumption settings and the pool that runs handshakes
+// The key is taken from the standard javax.net.ssl.keyStore and javax.net.ssl.keyStorePassword properties
+class TlsSupport {
+    static final boolean ENABLED = Boolean.getBoolean("chat.tls"); // Whether the chat port speaks TLS
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("chat.tls.sessionCache", 20_000); // Sessions kept for resumption
+    private static final int SESSION_TIMEOUT_S = Integer.getInteger("chat.tls.sessionTimeout", 24 * 60 * 60); // How long a session can be resumed
+    private static final int HANDSHAKE_TIMEOUT_MS = 10_000; // A client must finish the handshake within this time
+    private static final int HANDSHAKE_BACKLOG = 1024; // Handshakes waiting for a pool thread before new ones are refused
+
+    // Handshakes run here so an expensive full handshake never occupies a client handler
+    private static final ThreadPoolExecutor handshakes = new ThreadPoolExecutor(
+            Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(HANDSHAKE_BACKLOG), r -> {
+                Thread thread = new Thread(r, "tls-handshake");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private TlsSupport() {
+    }
+
+    // Open the listening socket, with TLS when chat.tls is set
+    static ServerSocket open(int port) throws IOException {
+        if (!ENABLED) {
+            return bind(new ServerSocket(), port);
+        }
+        SSLContext context;
+        try {
+            context = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available", e);
+        }
+        SSLSessionContext sessions = context.getServerSessionContext(); // Reconnecting clients resume instead of doing a full handshake
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_S);
+        SSLServerSocket serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+        serverSocket.setNeedClientAuth(false);
+        bind(serverSocket, port);
+        EventLog.info("tls-enabled", "port", port);
+        return serverSocket;
+    }
+
+    // Bind with SO_REUSEPORT where supported, so a replacement process can listen before this one drains
+    private static ServerSocket bind(ServerSocket serverSocket, int port) throws IOException {
+        if (serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverSocket.bind(new InetSocketAddress(port));
+        return serverSocket;
+    }
+
+    // Hand an accepted socket to the session once it is ready; TLS sockets finish their handshake on the pool first
+    static void accept(Socket socket, Consumer<Socket> session, Runnable failed) {
+        try {
+            // Output is written a batch at a time already, so Nagle only delays it; with TLS it held the login reply
+            // behind the unacknowledged session ticket until the client's delayed ACK, some 40 ms per login
+            socket.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            // Already closed by the peer, the handshake or login fails on it
+        }
+        if (!(socket instanceof SSLSocket)) {
+            session.accept(socket);
+            return;
+        }
+        try {
+            handshakes.execute(() -> {
+                try {
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS); // A stalled client cannot hold a pool thread
+                    ((SSLSocket) socket).startHandshake();
+                    socket.setSoTimeout(0);
+                    session.accept(socket);
+                } catch (IOException e) {
+                    EventLog.info("tls-handshake-failed", "remote", socket.getRemoteSocketAddress(), "reason", e.getMessage());
+                    close(socket);
+                    failed.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            close(socket); // Too many handshakes pending, the client retries later
+            failed.run();
+        }
+    }
+
+    // Close a socket that never became a session
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            EventLog.error("close-failed", e); // Print error if socket closing fails
+        }
+    }
+}
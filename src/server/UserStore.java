@@ -0,0 +1,29 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Registered users and their credentials
+interface UserStore {
+    // Whether the username exists and the password matches
+    boolean validate(String username, String password);
+
+    // Add a user; returns false if the username is taken or the user could not be stored
+    boolean register(String username, String password);
+
+    // Flush and release the storage
+    void close();
+
+    // The store chosen with chat.store: "file" for users.txt, "log" for the embedded log-structured store
+    static UserStore open() {
+        if ("log".equals(System.getProperty("chat.store", "file"))) {
+            try {
+                return new LogUserStore(new File("src/server/users.log"), new File(FlatFileUserStore.FILE));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Users registered in the log would be missing from any other store
+            }
+        }
+        return new FlatFileUserStore();
+    }
+}
@@ -0,0 +1,100 @@
+package client;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// EmojiMatcher against the loop it replaced (String.replace once per shortcode), for growing shortcode packs:
+// java -cp <classes> client.EmojiBenchmark [messages]; prints time and allocation per message
+public class EmojiBenchmark {
+    private static final int ROUNDS = 5; // Timed rounds per case, the best is reported
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        Map<String, String> warmUp = shortcodes(100);
+        EmojiMatcher warmMatcher = new EmojiMatcher(warmUp);
+        measure(messages(count, 100, 0.1), message -> naive(warmUp, message)); // So the first case is not timed cold
+        measure(messages(count, 100, 0.1), warmMatcher::replace);
+        System.out.printf("%-10s %-8s %12s %12s %12s %12s%n", "shortcodes", "matches", "naive ns", "matcher ns", "naive B", "matcher B");
+        for (int size : new int[]{7, 100, 1000, 5000}) {
+            Map<String, String> shortcodes = shortcodes(size);
+            EmojiMatcher matcher = new EmojiMatcher(shortcodes);
+            for (double share : new double[]{0.0, 0.1}) {
+                List<String> messages = messages(count, size, share);
+                for (String message : messages) {
+                    if (!matcher.replace(message).equals(naive(shortcodes, message))) {
+                        throw new AssertionError("Results differ for " + message);
+                    }
+                }
+                long[] naive = measure(messages, message -> naive(shortcodes, message));
+                long[] fast = measure(messages, matcher::replace);
+                System.out.printf("%-10d %-8s %12.0f %12.0f %12.0f %12.0f%n", size, (int) (share * 100) + "%",
+                        (double) naive[0] / count, (double) fast[0] / count, (double) naive[1] / count, (double) fast[1] / count);
+            }
+        }
+    }
+
+    // The commented-out replaceEmojis of ChatClient2
+    private static String naive(Map<String, String> shortcodes, String message) {
+        for (Map.Entry<String, String> entry : shortcodes.entrySet()) {
+            message = message.replace(entry.getKey(), entry.getValue());
+        }
+        return message;
+    }
+
+    // Best time and the allocation of that round, both for the whole list
+    private static long[] measure(List<String> messages, java.util.function.UnaryOperator<String> replace) {
+        long[] best = {Long.MAX_VALUE, 0};
+        long sink = 0;
+        for (int round = 0; round < ROUNDS + 3; round++) { // The first rounds warm up the JIT
+            long allocated = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (String message : messages) {
+                sink += replace.apply(message).length();
+            }
+            long time = System.nanoTime() - start;
+            allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+            if (round >= 3 && time < best[0]) {
+                best[0] = time;
+                best[1] = allocated;
+            }
+        }
+        if (sink == 42) {
+            System.out.println(); // Keeps the results alive
+        }
+        return best;
+    }
+
+    // The built-in shortcodes, then made-up ones like a large custom pack
+    private static Map<String, String> shortcodes(int size) {
+        Map<String, String> shortcodes = new LinkedHashMap<>();
+        String[] builtIn = {":smile:", ":sad:", ":laugh:", ":thumbs_up:", ":heart:", ":star:", ":fire:"};
+        for (int i = 0; i < size; i++) {
+            shortcodes.put(i < builtIn.length ? builtIn[i] : ":pack_" + i + ":", new String(Character.toChars(0x1F600 + i % 80)));
+        }
+        return shortcodes;
+    }
+
+    // Chat lines of 20 to 120 characters after the sender's name; the given share contains one shortcode
+    private static List<String> messages(int count, int size, double share) {
+        Random random = new Random(42);
+        String[] words = {"hello", "the", "meeting", "is", "at", "noon", "see", "you", "there", "ok", "thanks", "lunch?"};
+        List<String> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder line = new StringBuilder("user").append(random.nextInt(100)).append(": "); // As the room shows it
+            int length = 20 + random.nextInt(100);
+            while (line.length() < length) {
+                line.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            if (random.nextDouble() < share) {
+                line.append(size > 7 ? ":pack_" + (7 + random.nextInt(size - 7)) + ":" : ":smile:");
+            }
+            messages.add(line.toString());
+        }
+        return messages;
+    }
+}
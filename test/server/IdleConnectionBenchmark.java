@@ -0,0 +1,147 @@
+package server;
+
+import java.io.*;
+import java.lang.ref.Reference;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+// Heap held per idle connection by the server's socket I/O state: each connection receives a line and sends one,
+// then its reading thread blocks for the next line; compares the reader and writer the server used at first, the
+// private 8 KB line buffer with a PrintWriter it had before the pool, and the pooled LineReader and OutboundQueue.
+// The first row, with no reader or writer at all, is what every version costs anyway; idle pooled buffers and writer
+// threads left by the burst of logins are counted in the last row, and listed after it:
+// java -cp <classes> server.IdleConnectionBenchmark [connections]
+class IdleConnectionBenchmark {
+    // Per-connection I/O state of one server version, built on the accepted socket
+    private interface Connection {
+        void open(Socket socket, CountDownLatch ready) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        System.setProperty("chat.log.console", "false");
+        System.out.printf("connections=%d%n%-22s %12s%n", count, "server I/O", "B/connection");
+        measure("thread only", count, IdleConnectionBenchmark::bare);
+        measure("BufferedReader+Print", count, IdleConnectionBenchmark::buffered);
+        measure("8KB buffer+Print", count, IdleConnectionBenchmark::privateBuffer);
+        measure("pooled", count, IdleConnectionBenchmark::pooled);
+    }
+
+    // No reader or writer objects, only the handler thread and the socket's own streams: what every version has anyway
+    private static void bare(Socket socket, CountDownLatch ready) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        reading(() -> {
+            byte[] line = new byte[16];
+            in.read(line);
+            out.write("SUCCESS\n".getBytes());
+            ready.countDown();
+            in.read(line);
+        });
+    }
+
+    // The original ClientHandler: a BufferedReader over an InputStreamReader and an autoflushing PrintWriter
+    private static void buffered(Socket socket, CountDownLatch ready) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        reading(() -> {
+            in.readLine();
+            out.println("SUCCESS");
+            ready.countDown();
+            in.readLine(); // Idle from here on
+        });
+    }
+
+    // Before the pool: LineReader owned an 8 KB buffer for the life of the connection, output went through a PrintWriter
+    private static void privateBuffer(Socket socket, CountDownLatch ready) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[8192];
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+        reading(() -> {
+            in.read(buffer);
+            out.println("SUCCESS");
+            out.flush();
+            ready.countDown();
+            in.read(buffer);
+        });
+    }
+
+    // Now: LineReader borrows a buffer only while a line is pending, the outbound queue borrows one per written batch
+    private static void pooled(Socket socket, CountDownLatch ready) throws IOException {
+        LineReader in = new LineReader(socket.getInputStream());
+        OutboundQueue out = new OutboundQueue();
+        out.start(socket.getOutputStream(), "writer");
+        reading(() -> {
+            in.next();
+            out.add(OutboundQueue.Lane.CONTROL, "SUCCESS");
+            ready.countDown();
+            in.next();
+        });
+    }
+
+    // A blocking read loop, standing for the handler thread
+    private interface Reading {
+        void run() throws IOException;
+    }
+
+    private static void reading(Reading loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.run();
+            } catch (IOException e) {
+                // Closed at the end of the measurement
+            }
+        }, "handler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void measure(String name, int count, Connection connection) throws Exception {
+        List<Socket> sockets = new ArrayList<>();
+        List<Socket> clients = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, count, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < count; i++) {
+                clients.add(new Socket(server.getInetAddress(), server.getLocalPort()));
+                sockets.add(server.accept());
+            }
+        }
+        long base = used();
+        CountDownLatch ready = new CountDownLatch(count);
+        for (Socket socket : sockets) {
+            connection.open(socket, ready);
+        }
+        for (Socket client : clients) {
+            client.getOutputStream().write("LOGIN\n".getBytes());
+        }
+        for (Socket client : clients) {
+            client.getInputStream().read(new byte[16]); // The reply
+        }
+        ready.await();
+        Thread.sleep(500); // Every handler is blocked reading again
+        long held = used() - base;
+        Reference.reachabilityFence(sockets);
+        System.out.printf("%-22s %12.0f%n", name, (double) held / count);
+        if (name.equals("pooled")) {
+            System.out.println("  included, shared by all connections: buffers " + BufferPool.report() + ", writers " + OutboundQueue.report());
+        }
+        for (Socket socket : clients) {
+            socket.close();
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        Thread.sleep(500);
+    }
+
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
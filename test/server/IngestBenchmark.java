@@ -0,0 +1,160 @@
+package server;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+// Client command parsing as ClientHandler.run did it before LineReader (readLine, startsWith, split) against the
+// in-place parse it does now, on the same mix of chat lines read from memory:
+// java -cp <classes> server.IngestBenchmark [lines]; prints time, allocation and young collections per line
+class IngestBenchmark {
+    private static final int ROUNDS = 5; // Timed rounds per path, the best is reported
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink; // Sum over the parsed values, so the parsing cannot be left out
+
+    // One way of parsing a whole stream
+    private interface Parser {
+        void parse(InputStream in) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        byte[] input = input(count);
+        System.out.printf("lines=%d (60%% room, 20%% /msg, 15%% /ack, 5%% /typing)%n", count);
+        System.out.printf("%-10s %10s %10s %14s%n", "path", "ns/line", "B/line", "young GCs");
+        report("readLine", input, count, IngestBenchmark::readLines);
+        report("LineReader", input, count, IngestBenchmark::lineReader);
+        if (sink == 42) {
+            System.out.println(); // Keeps the results alive
+        }
+    }
+
+    // The loop of ClientHandler.run before it parsed in place
+    private static void readLines(InputStream stream) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(stream, Charset.defaultCharset()));
+        String message;
+        while ((message = in.readLine()) != null) {
+            if (message.startsWith("/msg ")) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length == 3) {
+                    consume(parts[1], parts[2]);
+                }
+            } else if (message.startsWith("/ack ")) {
+                String[] parts = message.split(" ");
+                if (parts.length == 4 && parts[1].equals("*")) {
+                    sink += Long.parseLong(parts[2]) + Long.parseLong(parts[3]);
+                } else if (parts.length == 4) {
+                    consume(parts[1], null);
+                    sink += Long.parseLong(parts[2]) + Long.parseLong(parts[3]);
+                }
+            } else if (message.startsWith("/typing ")) {
+                String[] parts = message.split(" ");
+                if (parts.length == 3 && (parts[2].equals("start") || parts[2].equals("stop"))) {
+                    consume(parts[1], parts[2]);
+                }
+            } else {
+                consume(message, null);
+            }
+        }
+    }
+
+    // The loop of ClientHandler.run now, and its handleAck
+    private static void lineReader(InputStream stream) throws IOException {
+        LineReader in = new LineReader(stream);
+        while (in.next()) {
+            if (in.startsWith("/msg ")) {
+                int space = in.indexOf(' ', 5);
+                if (space > 5 && space < in.length()) {
+                    consume(in.string(5, space), in.string(space + 1));
+                }
+            } else if (in.startsWith("/ack ")) {
+                int first = in.indexOf(' ', 5);
+                int second = in.indexOf(' ', first + 1);
+                int third = in.indexOf(' ', second + 1);
+                if (third == in.length() && second != in.length()) {
+                    long delivered = in.parseLong(first + 1, second);
+                    long read = in.parseLong(second + 1, third);
+                    if (!in.equals(5, first, "*")) {
+                        consume(in.string(5, first), null);
+                    }
+                    sink += delivered + read;
+                }
+            } else if (in.startsWith("/typing ")) {
+                int space = in.indexOf(' ', 8);
+                String state = in.equals(space + 1, in.length(), "start") ? "start" : in.equals(space + 1, in.length(), "stop") ? "stop" : null;
+                if (space < in.length() && state != null) {
+                    consume(in.equals(8, space, "*") ? "*" : in.string(8, space), state);
+                }
+            } else {
+                consume(in.string(0), null);
+            }
+        }
+        in.release();
+    }
+
+    private static void consume(String first, String second) {
+        sink += first.length() + (second == null ? 0 : second.length());
+    }
+
+    // Best time of the timed rounds, the allocation of that round and the young collections over all timed rounds
+    private static void report(String name, byte[] input, int count, Parser parser) throws IOException {
+        for (int round = 0; round < 3; round++) {
+            parser.parse(new ByteArrayInputStream(input)); // Warm up the JIT
+        }
+        long bestTime = Long.MAX_VALUE;
+        long bestAllocated = 0;
+        long collections = collections();
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocated = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            parser.parse(new ByteArrayInputStream(input));
+            long time = System.nanoTime() - start;
+            allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+            if (time < bestTime) {
+                bestTime = time;
+                bestAllocated = allocated;
+            }
+        }
+        collections = collections() - collections;
+        System.out.printf("%-10s %10.0f %10.0f %14s%n", name, (double) bestTime / count, (double) bestAllocated / count,
+                collections + " in " + ROUNDS + " runs");
+    }
+
+    private static long collections() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    // Lines as a client sends them, in the given mix
+    private static byte[] input(int count) {
+        Random random = new Random(42);
+        String[] words = {"hello", "the", "meeting", "is", "at", "noon", "see", "you", "there", "ok", "thanks", "lunch?"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(100);
+            if (kind < 15) {
+                text.append("/ack ").append(random.nextBoolean() ? "*" : "user" + random.nextInt(1000))
+                        .append(' ').append(i).append(' ').append(Math.max(0, i - random.nextInt(5)));
+            } else if (kind < 20) {
+                text.append("/typing ").append(random.nextBoolean() ? "*" : "user" + random.nextInt(1000))
+                        .append(random.nextBoolean() ? " start" : " stop");
+            } else {
+                if (kind < 40) {
+                    text.append("/msg user").append(random.nextInt(1000)).append(' ');
+                }
+                int length = 10 + random.nextInt(80);
+                for (int start = text.length(); text.length() - start < length; ) {
+                    text.append(words[random.nextInt(words.length)]).append(' ');
+                }
+            }
+            text.append('\n');
+        }
+        return text.toString().getBytes(Charset.defaultCharset());
+    }
+}
@@ -0,0 +1,214 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.HashMap;
+import java.util.Map;
+
+// Routing through SessionTable with cached prefixes against the String-keyed map and per-message concatenation it
+// replaced, for room messages, private messages and presence changes, plus the memory each keeps per session:
+// java -cp <classes> server.RoutingBenchmark [sessions]
+class RoutingBenchmark {
+    private static final int ROUNDS = 5; // Timed rounds per case, the best is reported
+    private static final int OPERATIONS = 2000; // Operations per round
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Stands for a ClientHandler: its name, the prefixes built at login, and a count instead of an outbound queue
+    private static class Session {
+        final String name;
+        final String publicPrefix;
+        final String privateFromPrefix;
+        final String privateToPrefix;
+        long received;
+
+        Session(String name) {
+            this.name = name;
+            publicPrefix = name + ": ";
+            privateFromPrefix = "Private from " + name + ": ";
+            privateToPrefix = "Private to " + name + ": ";
+        }
+
+        void send(String line) {
+            received += line.length();
+        }
+    }
+
+    // One way of routing
+    private interface Router {
+        void room(Session sender, String text);
+
+        void privateMessage(Session sender, String recipient, String text);
+
+        void presence(Session session); // Leave and come back, sending the user list each time
+    }
+
+    // ChatServer before the session table: a HashMap by name, lines concatenated per message, the list rebuilt per change
+    private static class MapRouter implements Router {
+        final Map<String, Session> clientHandlers = new HashMap<>();
+
+        @Override
+        public void room(Session sender, String text) {
+            String message = sender.name + ": " + text;
+            synchronized (clientHandlers) {
+                for (Session session : clientHandlers.values()) {
+                    if (session != sender) {
+                        session.send(message);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void privateMessage(Session sender, String recipient, String text) {
+            Session handler = clientHandlers.get(recipient);
+            if (handler != null) {
+                handler.send("Private from " + sender.name + ": " + text);
+                sender.send("Private to " + recipient + ": " + text);
+            }
+        }
+
+        @Override
+        public void presence(Session session) {
+            synchronized (clientHandlers) {
+                clientHandlers.remove(session.name);
+            }
+            userList();
+            synchronized (clientHandlers) {
+                clientHandlers.put(session.name, session);
+            }
+            userList();
+        }
+
+        private void userList() {
+            StringBuilder userList = new StringBuilder("/users ");
+            synchronized (clientHandlers) {
+                for (String username : clientHandlers.keySet()) {
+                    userList.append(username).append(" ");
+                }
+            }
+            String line = userList.toString().trim();
+            for (Session client : clientHandlers.values()) {
+                client.send(line);
+            }
+        }
+    }
+
+    // ChatServer now: session ids, prefixes cached per session and the user list cached per change
+    private static class TableRouter implements Router {
+        final SessionTable<Session> sessions = new SessionTable<>();
+        final Map<Session, Integer> ids = new HashMap<>(); // What each ClientHandler keeps in its sessionId field
+
+        @Override
+        public void room(Session sender, String text) {
+            String message = sender.publicPrefix.concat(text);
+            sessions.forEach(session -> {
+                if (session != sender) {
+                    session.send(message);
+                }
+            });
+        }
+
+        @Override
+        public void privateMessage(Session sender, String recipient, String text) {
+            Session handler = sessions.get(recipient);
+            if (handler != null) {
+                handler.send(sender.privateFromPrefix.concat(text));
+                sender.send(handler.privateToPrefix.concat(text));
+            }
+        }
+
+        @Override
+        public void presence(Session session) {
+            sessions.unregister(ids.get(session), session);
+            userList();
+            ids.put(session, sessions.register(session.name, session));
+            userList();
+        }
+
+        private void userList() {
+            String line = sessions.userList();
+            sessions.forEach(client -> client.send(line));
+        }
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Session[] sessions = new Session[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new Session("user" + i);
+        }
+        MapRouter map = new MapRouter();
+        TableRouter table = new TableRouter();
+        for (Session session : sessions) {
+            map.clientHandlers.put(session.name, session);
+            table.ids.put(session, table.sessions.register(session.name, session));
+        }
+        System.out.printf("sessions=%d%n%-9s %-8s %12s %12s%n", count, "case", "routing", "ns/op", "B/op");
+        compare("room", map, table, (router, i) -> router.room(sessions[i % count], "see you at noon in the meeting room"));
+        compare("private", map, table, (router, i) -> router.privateMessage(sessions[i % count], "user" + (i * 31 % count), "lunch?"));
+        compare("presence", map, table, (router, i) -> router.presence(sessions[i % count]));
+        footprint(100_000);
+    }
+
+    // One operation of a case
+    private interface Operation {
+        void run(Router router, int i);
+    }
+
+    private static void compare(String name, Router before, Router after, Operation operation) {
+        for (Router router : new Router[]{before, after}) {
+            long bestTime = Long.MAX_VALUE;
+            long bestAllocated = 0;
+            for (int round = 0; round < ROUNDS + 3; round++) { // The first rounds warm up the JIT
+                long allocated = THREADS.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    operation.run(router, i);
+                }
+                long time = System.nanoTime() - start;
+                allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+                if (round >= 3 && time < bestTime) {
+                    bestTime = time;
+                    bestAllocated = allocated;
+                }
+            }
+            System.out.printf("%-9s %-8s %12.0f %12.0f%n", name, router == before ? "map" : "table",
+                    (double) bestTime / OPERATIONS, (double) bestAllocated / OPERATIONS);
+        }
+    }
+
+    // Heap held per session by each routing structure, for the given number of sessions; the sessions themselves and
+    // their names exist in both and are not counted
+    private static void footprint(int count) {
+        Session[] sessions = new Session[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new Session("user" + i);
+        }
+        long base = used();
+        Map<String, Session> map = new HashMap<>();
+        for (Session session : sessions) {
+            map.put(session.name, session);
+        }
+        long mapBytes = used() - base;
+        Reference.reachabilityFence(map); // Otherwise the collector may free it before it is measured
+        map = null;
+        base = used();
+        SessionTable<Session> table = new SessionTable<>();
+        for (Session session : sessions) {
+            table.register(session.name, session);
+        }
+        long tableBytes = used() - base;
+        Reference.reachabilityFence(table);
+        Reference.reachabilityFence(sessions);
+        System.out.printf("footprint at %d sessions: map %.0f B/session, table %.0f B/session%n", count,
+                (double) mapBytes / count, (double) tableBytes / count);
+    }
+
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+// Room fan-out throughput for a range of shard counts: sender threads post messages the way broadcastMessage does,
+// under one lock, and the shards deliver each to every session's outbound queue; the queues are not started, so the
+// shared writer pool, which does not depend on the shard count, stays out of the measurement:
+// java -cp <classes> server.ShardBenchmark [sessions] [messages] [senders]
+class ShardBenchmark {
+    private static final int ROUNDS = 3; // Runs per shard count, the fastest is reported
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int senders = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("cores=%d sessions=%d messages=%d senders=%d%n", cores, sessions, messages, senders);
+        System.out.printf("%-7s %14s %14s %16s%n", "shards", "deliveries/s", "post us/msg", "private us/msg");
+        run(1, sessions, messages / 4, senders); // Warm up the JIT
+        for (int shards : new int[]{1, 2, 4, 8, 16, 2 * cores}) {
+            double[] best = {0, 0, 0};
+            for (int round = 0; round < ROUNDS; round++) {
+                double[] result = run(shards, sessions, messages, senders);
+                if (result[0] > best[0]) {
+                    best = result;
+                }
+            }
+            System.out.printf("%-7d %14.0f %14.2f %16.2f%n", shards, best[0], best[1], best[2]);
+        }
+    }
+
+    // Deliveries per second, and microseconds per message spent posting room messages and routing private ones
+    private static double[] run(int shards, int sessions, int messages, int senders) throws Exception {
+        ShardedSessions<OutboundQueue> table = new ShardedSessions<>(shards);
+        List<OutboundQueue> queues = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            OutboundQueue queue = new OutboundQueue();
+            table.register("user" + i, queue);
+            queues.add(queue);
+        }
+        Object history = new Object(); // Stands for the messageHistory lock broadcasts are posted under
+        long[] posting = new long[senders]; // Nanoseconds each sender spent posting room messages
+        long[] routing = new long[senders]; // Nanoseconds each sender spent on private messages
+        CountDownLatch ready = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            int sender = s;
+            Thread thread = new Thread(() -> {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int m = sender; m < messages; m += senders) {
+                    String line = "/seq " + m + " user" + sender + ": message number " + m + " to the room";
+                    long start = System.nanoTime();
+                    synchronized (history) {
+                        table.broadcast(queue -> queue.add(OutboundQueue.Lane.LIVE, line));
+                    }
+                    long posted = System.nanoTime();
+                    OutboundQueue recipient = table.get("user" + (m * 31 % sessions)); // A private message between the room ones
+                    recipient.add(OutboundQueue.Lane.PRIVATE, "/pm user" + sender + " hello " + m);
+                    posting[sender] += posted - start;
+                    routing[sender] += System.nanoTime() - posted;
+                }
+            }, "sender-" + s);
+            thread.start();
+            threads.add(thread);
+        }
+        long start = System.nanoTime();
+        ready.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        table.shutdown(600_000); // Every fan-out task has run
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long posted = 0;
+        long routed = 0;
+        for (int s = 0; s < senders; s++) {
+            posted += posting[s];
+            routed += routing[s];
+        }
+        for (OutboundQueue queue : queues) {
+            queue.close(); // Drops the queued lines
+        }
+        return new double[]{messages * (double) sessions / seconds, posted / 1000.0 / messages, routed / 1000.0 / messages};
+    }
+}
@@ -0,0 +1,339 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Crash recovery and sync checks for the embedded stores, runnable without a test framework:
+// java -cp <classes> server.StorageCheck; exits with 1 after the first failed check
+class StorageCheck {
+    private static File directory; // Scratch files of the current run
+
+    // A record log that counts its syncs
+    private static class CountingLog extends RecordLog {
+        final AtomicInteger forces = new AtomicInteger();
+
+        CountingLog(File file) throws IOException {
+            super(file, (offset, payload) -> {
+            });
+        }
+
+        @Override
+        synchronized void force() throws IOException {
+            super.force();
+            forces.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        directory = Files.createTempDirectory("storage-check").toFile();
+        System.setProperty("chat.log.dir", file("logs").getPath()); // Keep the event log of the check out of the server's
+        try {
+            recordLogCutsTornTail();
+            recordLogCutsDamagedRecord();
+            recordLogIgnoresImpossibleLength();
+            batchPolicySyncsEveryBatch();
+            periodicPolicySharesSyncs();
+            periodicPolicySyncsOnClose();
+            nonePolicyNeverSyncs();
+            rewriteReplacesQueuedAppends();
+            userStoreRecovers();
+            userStoreImportsFlatFileOnce();
+            messageStoreRecovers();
+            messageStoreRecoversAfterCompaction();
+            System.out.println("All storage checks passed");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // A crash in the middle of an append leaves half a record; it is cut off and the log appends after the intact part
+    private static void recordLogCutsTornTail() throws IOException {
+        File file = file("torn.log");
+        long intact = write(file, "one", "two", "three");
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(ByteBuffer.allocate(12).putInt(100).putInt(0).putInt(42).array()); // Header of 100 bytes, 4 written
+        }
+        List<String> records = new ArrayList<>();
+        try (RecordLog log = open(file, records)) {
+            check(records.equals(Arrays.asList("one", "two", "three")), "torn tail: intact records kept, got " + records);
+            check(log.size() == intact && file.length() == intact, "torn tail: file cut to " + intact + ", is " + file.length());
+            log.append(bytes("four"));
+        }
+        records.clear();
+        open(file, records).close();
+        check(records.equals(Arrays.asList("one", "two", "three", "four")), "torn tail: appends after the cut, got " + records);
+        pass("RecordLog cuts a torn tail");
+    }
+
+    // A whole header with a payload that does not match its checksum ends the log just the same
+    private static void recordLogCutsDamagedRecord() throws IOException {
+        File file = file("damaged.log");
+        long intact = write(file, "one", "two");
+        write(file, "three");
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(file.length() - 1);
+            raw.write('X');
+        }
+        List<String> records = new ArrayList<>();
+        open(file, records).close();
+        check(records.equals(Arrays.asList("one", "two")), "damaged record: earlier records kept, got " + records);
+        check(file.length() == intact, "damaged record: file cut to " + intact + ", is " + file.length());
+        pass("RecordLog cuts a record with a bad checksum");
+    }
+
+    // A garbage length must end the scan, not allocate what it claims
+    private static void recordLogIgnoresImpossibleLength() throws IOException {
+        File file = file("length.log");
+        long intact = write(file, "one");
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(0).array());
+        }
+        List<String> records = new ArrayList<>();
+        open(file, records).close();
+        check(records.equals(Arrays.asList("one")) && file.length() == intact, "impossible length: got " + records);
+        pass("RecordLog ignores an impossible record length");
+    }
+
+    // Every batch is synced before its futures complete; records queued one at a time each get their own sync
+    private static void batchPolicySyncsEveryBatch() throws Exception {
+        CountingLog records = new CountingLog(file("batch.log"));
+        GroupCommitLog log = new GroupCommitLog(records, "check-batch", GroupCommitLog.SyncPolicy.BATCH);
+        for (int i = 0; i < 10; i++) {
+            int before = records.forces.get();
+            log.append(bytes("record " + i)).join();
+            check(records.forces.get() == before + 1, "batch: one sync per lone record, had " + (records.forces.get() - before));
+        }
+        List<CompletableFuture<Long>> writes = new ArrayList<>();
+        int before = records.forces.get();
+        for (int i = 0; i < 1000; i++) {
+            int index = i;
+            writes.add(log.append(bytes("burst " + i)).whenComplete((offset, error) ->
+                    check(records.forces.get() > before, "batch: record " + index + " completed before a sync")));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+        int synced = records.forces.get() - before;
+        check(synced >= 1 && synced < 1000, "batch: a burst shares syncs, took " + synced);
+        checkOffsets(records, writes, "burst ");
+        log.close();
+        pass("batch policy syncs every batch (1000 queued records took " + synced + " syncs)");
+    }
+
+    // Records written within one sync window are completed together by a single sync, not before it
+    private static void periodicPolicySharesSyncs() throws Exception {
+        CountingLog records = new CountingLog(file("periodic.log"));
+        GroupCommitLog log = new GroupCommitLog(records, "check-periodic", GroupCommitLog.SyncPolicy.PERIODIC);
+        List<CompletableFuture<Long>> writes = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            int index = i;
+            writes.add(log.append(bytes("record " + i)).whenComplete((offset, error) ->
+                    check(records.forces.get() > 0, "periodic: record " + index + " completed before a sync")));
+            Thread.sleep(5);
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+        int synced = records.forces.get();
+        check(synced >= 1 && synced < 20, "periodic: 40 records over 200 ms should share a few syncs, took " + synced);
+        checkOffsets(records, writes, "record ");
+        log.close();
+        pass("periodic policy shares syncs (40 records over 200 ms took " + synced + " syncs)");
+    }
+
+    // Closing syncs what the periodic policy still holds, even inside the sync window
+    private static void periodicPolicySyncsOnClose() throws Exception {
+        CountingLog records = new CountingLog(file("periodic-close.log"));
+        GroupCommitLog log = new GroupCommitLog(records, "check-periodic-close", GroupCommitLog.SyncPolicy.PERIODIC);
+        CompletableFuture<Long> write = log.append(bytes("last"));
+        log.close();
+        check(write.isDone() && !write.isCompletedExceptionally(), "periodic close: record completed");
+        check(records.forces.get() == 1, "periodic close: one sync, had " + records.forces.get());
+        pass("periodic policy syncs on close");
+    }
+
+    // Without syncing, records are still written in order and their futures complete
+    private static void nonePolicyNeverSyncs() throws Exception {
+        CountingLog records = new CountingLog(file("none.log"));
+        GroupCommitLog log = new GroupCommitLog(records, "check-none", GroupCommitLog.SyncPolicy.NONE);
+        List<CompletableFuture<Long>> writes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            writes.add(log.append(bytes("record " + i)));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+        checkOffsets(records, writes, "record ");
+        log.close();
+        check(records.forces.get() == 0, "none: no syncs, had " + records.forces.get());
+        pass("none policy never syncs");
+    }
+
+    // A rewrite is applied in submission order and leaves only its own records
+    private static void rewriteReplacesQueuedAppends() throws Exception {
+        File file = file("rewrite.log");
+        GroupCommitLog log = new GroupCommitLog(new CountingLog(file), "check-rewrite", GroupCommitLog.SyncPolicy.BATCH);
+        for (int i = 0; i < 50; i++) {
+            log.append(bytes("old " + i));
+        }
+        log.rewrite(Arrays.asList(bytes("kept 1"), bytes("kept 2")));
+        log.append(bytes("new")).join();
+        log.close();
+        List<String> records = new ArrayList<>();
+        open(file, records).close();
+        check(records.equals(Arrays.asList("kept 1", "kept 2", "new")), "rewrite: got " + records);
+        pass("rewrite replaces the appends queued before it");
+    }
+
+    // Registered users survive a restart, and a sign-up torn by a crash is neither half-present nor in the way
+    private static void userStoreRecovers() throws IOException {
+        File file = file("users.log");
+        File legacy = file("users-none.txt");
+        LogUserStore users = new LogUserStore(file, legacy);
+        for (int i = 0; i < 20; i++) {
+            check(users.register("user" + i, "secret" + i), "users: register user" + i);
+        }
+        check(!users.register("user3", "other"), "users: duplicate name refused");
+        users.close();
+        long intact = file.length();
+        byte[] torn = ("user20\nsecret20").getBytes(StandardCharsets.UTF_8);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(ByteBuffer.allocate(8 + 5).putInt(torn.length).putInt(0).put(torn, 0, 5).array());
+        }
+        users = new LogUserStore(file, legacy);
+        check(file.length() == intact, "users: torn sign-up cut off");
+        for (int i = 0; i < 20; i++) {
+            check(users.validate("user" + i, "secret" + i), "users: user" + i + " logs in after a restart");
+        }
+        check(!users.validate("user3", "other") && !users.validate("user20", "secret20"), "users: no stale or torn logins");
+        check(users.register("user20", "secret20"), "users: torn name can sign up again");
+        users.close();
+        users = new LogUserStore(file, legacy);
+        check(users.validate("user20", "secret20"), "users: new sign-up durable");
+        users.close();
+        pass("LogUserStore recovers from a torn sign-up");
+    }
+
+    // The flat file is imported into an empty log once, and its later contents are not imported again
+    private static void userStoreImportsFlatFileOnce() throws IOException {
+        File file = file("imported.log");
+        File legacy = file("users.txt");
+        Files.write(legacy.toPath(), Arrays.asList("alice:one", "bob:two", "broken line", "alice:again"), StandardCharsets.UTF_8);
+        LogUserStore users = new LogUserStore(file, legacy);
+        check(users.validate("alice", "one") && users.validate("bob", "two"), "import: users imported");
+        check(!users.validate("alice", "again"), "import: first entry of a name wins");
+        users.close();
+        Files.write(legacy.toPath(), Arrays.asList("carol:three"), StandardCharsets.UTF_8);
+        users = new LogUserStore(file, legacy);
+        check(users.validate("alice", "one") && !users.validate("carol", "three"), "import: only into an empty log");
+        users.close();
+        pass("LogUserStore imports the flat file once");
+    }
+
+    // Messages survive a restart with their seqs, a torn last message is dropped, and seqs continue after the survivors
+    private static void messageStoreRecovers() throws IOException {
+        File file = file("history.log");
+        List<MessageStore.Entry> evicted = new ArrayList<>();
+        LogMessageStore history = new LogMessageStore(file, 50, evicted::add);
+        for (int i = 1; i <= 30; i++) {
+            check(history.append("message " + i) == i, "history: seq " + i);
+        }
+        history.durable().join();
+        history.close();
+        long intact = file.length();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(ByteBuffer.allocate(8 + 8).putInt(40).putInt(0).putLong(31).array()); // Seq written, text missing
+        }
+        history = new LogMessageStore(file, 50, evicted::add);
+        check(file.length() == intact, "history: torn message cut off");
+        check(history.lastSeq() == 30 && history.size() == 30, "history: 30 messages back, lastSeq=" + history.lastSeq());
+        List<MessageStore.Entry> page = history.page(0, Long.MAX_VALUE, 100);
+        for (int i = 0; i < page.size(); i++) {
+            check(page.get(i).seq == i + 1 && page.get(i).text.equals("message " + (i + 1)), "history: entry " + (i + 1) + " intact");
+        }
+        check(history.append("after restart") == 31, "history: seqs continue after the survivors");
+        history.durable().join();
+        history.close();
+        check(evicted.isEmpty(), "history: nothing evicted below the limit");
+        pass("LogMessageStore recovers from a torn message");
+    }
+
+    // After compaction the log holds only the kept messages, and a restart brings back exactly those
+    private static void messageStoreRecoversAfterCompaction() throws IOException {
+        File file = file("compacted.log");
+        int limit = 20;
+        List<MessageStore.Entry> evicted = new ArrayList<>();
+        LogMessageStore history = new LogMessageStore(file, limit, evicted::add);
+        for (int i = 1; i <= 500; i++) {
+            history.append("message " + i);
+        }
+        history.durable().join();
+        history.close();
+        check(evicted.size() == 500 - limit, "compaction: evicted " + evicted.size());
+        List<String> records = new ArrayList<>();
+        open(file, records).close();
+        check(records.size() < 4 * 16 + limit, "compaction: log was compacted, holds " + records.size());
+        history = new LogMessageStore(file, limit, entry -> check(false, "compaction: nothing evicted while loading"));
+        List<MessageStore.Entry> page = history.page(0, Long.MAX_VALUE, 100);
+        check(history.lastSeq() == 500 && page.size() == limit && page.get(0).seq == 500 - limit + 1,
+                "compaction: newest " + limit + " back, got " + page.size() + " up to " + history.lastSeq());
+        history.close();
+        pass("LogMessageStore recovers after compaction");
+    }
+
+    // Every completed write can be read back at its offset
+    private static void checkOffsets(RecordLog log, List<CompletableFuture<Long>> writes, String prefix) throws IOException {
+        long previous = -1;
+        for (int i = 0; i < writes.size(); i++) {
+            long offset = writes.get(i).join();
+            check(offset > previous, "offsets: increase in submission order");
+            check(new String(log.read(offset), StandardCharsets.UTF_8).equals(prefix + i), "offsets: record " + i + " reads back");
+            previous = offset;
+        }
+    }
+
+    // Append records to a log file and return its length
+    private static long write(File file, String... payloads) throws IOException {
+        try (RecordLog log = open(file, new ArrayList<>())) {
+            for (String payload : payloads) {
+                log.append(bytes(payload));
+            }
+            log.force();
+            return log.size();
+        }
+    }
+
+    private static RecordLog open(File file, List<String> records) throws IOException {
+        return new RecordLog(file, (offset, payload) -> records.add(new String(payload, StandardCharsets.UTF_8)));
+    }
+
+    private static File file(String name) {
+        return new File(directory, name);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED " + what);
+            System.exit(1); // Also ends the check from a writer thread
+        }
+    }
+
+    private static void pass(String what) {
+        System.out.println("ok " + what);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
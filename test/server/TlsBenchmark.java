@@ -0,0 +1,118 @@
+package server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+// Connection setup rate and message throughput against a running server, run once with the server and this client in
+// plain mode and once with -Dchat.tls=true on both (the client trusting the server's certificate through
+// javax.net.ssl.trustStore); the server should be started with raised -Dchat.acceptRate and -Dchat.maxPerIp so
+// admission does not set the pace: java -cp <classes> server.TlsBenchmark [host] [connections] [messages]
+class TlsBenchmark {
+    private static final int PORT = 12345;
+    private static final String USER = "tlsbench";
+    private static final String PASSWORD = "tlsbench";
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        boolean tls = Boolean.getBoolean("chat.tls");
+        login(host, "SIGNUP", tls ? context() : null).close(); // Fails harmlessly once the user exists
+        System.out.printf("tls=%b connections=%d messages=%d%n", tls, connections, messages);
+        if (tls) {
+            setup("full handshake", connections, () -> login(host, "LOGIN", context())); // New context, nothing to resume
+            SSLContext shared = context();
+            setup("resumed", connections, () -> login(host, "LOGIN", shared));
+            throughput(messages, login(host, "LOGIN", shared));
+        } else {
+            setup("plain", connections, () -> login(host, "LOGIN", null));
+            throughput(messages, login(host, "LOGIN", null));
+        }
+    }
+
+    // Opens a logged-in connection
+    private interface Connect {
+        Socket open() throws IOException;
+    }
+
+    // Connect, log in and close, one connection after the other
+    private static void setup(String name, int connections, Connect connect) throws Exception {
+        connect.open().close(); // Warm up
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            connect.open().close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-15s %8.0f logins/s %8.2f ms each%n", name, connections / seconds, seconds * 1000 / connections);
+    }
+
+    // Send room messages on one connection and wait until the server has acknowledged them all
+    private static void throughput(int messages, Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        Thread sender = new Thread(() -> {
+            try {
+                for (int i = 0; i < messages; i++) {
+                    out.write("benchmark message number " + i + " with some ordinary chat text\n");
+                }
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sender.start();
+        int acknowledged = 0;
+        String line;
+        while (acknowledged < messages && (line = in.readLine()) != null) {
+            if (line.startsWith("/sent * ")) {
+                acknowledged++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-15s %8.0f messages/s (%d acknowledged)%n", "throughput", acknowledged / seconds, acknowledged);
+        socket.close();
+    }
+
+    private static Socket login(String host, String type, SSLContext context) throws IOException {
+        Socket socket;
+        if (context == null) {
+            socket = new Socket(host, PORT);
+        } else {
+            socket = context.getSocketFactory().createSocket(host, PORT);
+        }
+        socket.setTcpNoDelay(true); // As ChatClient does
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).startHandshake();
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(("/caps receipts\n" + type + "\n" + USER + "\n" + PASSWORD + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        StringBuilder reply = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            reply.append((char) c);
+        }
+        if (type.equals("LOGIN") && !reply.toString().equals("SUCCESS")) {
+            socket.close();
+            throw new IOException("Login failed: " + reply);
+        }
+        return socket;
+    }
+
+    // A fresh client context using the default trust store, so it holds no session to resume
+    private static SSLContext context() throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS is not available", e);
+        }
+    }
+}